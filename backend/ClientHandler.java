@@ -1,39 +1,242 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
-
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Connection to one client. A connection goes through its states in order
+ * and never back:
+ *
+ * <pre>
+ * CONNECTING  accepted, the player ID hasn't been sent yet
+ * ACTIVE      messages are read and handled
+ * DRAINING    closed by the server, nothing more is read and the socket is
+ *             closed once the queued messages are written
+ * CLOSED      the socket is closed
+ * </pre>
+ *
+ * The end of the stream, an error or a missed heartbeat disconnects the client
+ * right away. The room is told once, whichever of them happens first, and the
+ * player's slot and the tiles it was drawing are released.
+ */
 class ClientHandler implements Runnable {
+    enum State {
+        CONNECTING, ACTIVE, DRAINING, CLOSED
+    }
+
+    // Messages longer than this are treated as garbage, it fits the largest
+    // binary frame
+    private static final int MAX_MESSAGE_SIZE = 128 * 1024;
+    // The client is pinged this often, and dropped if nothing at all has been
+    // received from it for the idle timeout
+    private static final long PING_INTERVAL_MILLIS = 5000;
+    private static final long IDLE_TIMEOUT_MILLIS = 15000;
+    // Time a draining client gets to take the queued messages before its socket
+    // is closed anyway
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+    static final Log log = Log.get(Log.Category.CONNECTION);
+    // Every message received is logged at trace level, off by default
+    private static final Log messageLog = Log.get(Log.Category.MESSAGE);
+
     private Socket clientSocket;
-    private PrintWriter out;
-    private BufferedReader in;
-    // status variable of each thread
-    private boolean isClientConnected;
+    private OutputStream out;
+    private DataInputStream in;
+    // Only moves forward, guarded by the handler
+    private volatile State state = State.CONNECTING;
+    // Set once the client has agreed to use binary frames instead of text lines
+    private volatile boolean isBinaryProtocol = false;
     private int playerID;
-
-    public ClientHandler(Socket clientSocket) {
+    // Changes if the client resumes its slot in another room
+    private volatile Room room;
+    // Messages waiting to be written to the client
+    private OutboundQueue outbound = new OutboundQueue();
+    // Reused for every message read from the client
+    private byte[] messageBuffer = new byte[256];
+    private InboundMessage inbound = new InboundMessage();
+    // Point of a draw message, reused since the coverage and journal copy it
+    private int[] drawPoint = new int[2];
+    // Each is only written by one thread, the reader or the writer
+    private volatile long bytesReceived = 0;
+    private volatile long bytesSent = 0;
+    // System.nanoTime() of the last message received, written by the reader
+    private volatile long lastReceiveTime = System.nanoTime();
+    // Smoothed round trip time of the pings, -1 until the first pong
+    private volatile long roundTripMillis = -1;
+
+    public ClientHandler(Socket clientSocket, Room room) {
         this.clientSocket = clientSocket;
-        this.isClientConnected = true;
+        this.room = room;
         setPlayerID();
     }
 
     private void setPlayerID() {
-        playerID = Server.getAvaliablePlayer();
+        playerID = room.getAvaliablePlayer();
     }
 
     public int getPLayerID() {
         return playerID;
     }
 
+    public Room getRoom() {
+        return room;
+    }
+
     public Socket getSocket() {
         return clientSocket;
     }
 
-    public boolean getClientAlive() {
-        return isClientConnected;
+    State getState() {
+        return state;
+    }
+
+    boolean isActive() {
+        return state == State.ACTIVE;
+    }
+
+    /**
+     * Move the connection to a later state
+     * 
+     * @param next
+     * @return false if the connection is already in that state or past it
+     */
+    private synchronized boolean moveTo(State next) {
+        if (state.compareTo(next) >= 0) {
+            return false;
+        }
+
+        state = next;
+        return true;
+    }
+
+    /**
+     * Start handling messages, once the player ID has been sent
+     */
+    void activate() {
+        moveTo(State.ACTIVE);
+    }
+
+    boolean isBinaryProtocol() {
+        return isBinaryProtocol;
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    /**
+     * Start pinging the client on the timing wheel. A client that sent nothing
+     * for the idle timeout, not even a pong, is removed from its room.
+     * 
+     * @param wheel
+     */
+    void startHeartbeat(TimingWheel wheel) {
+        wheel.schedule(() -> heartbeat(wheel), PING_INTERVAL_MILLIS);
+    }
+
+    private void heartbeat(TimingWheel wheel) {
+        if (state.compareTo(State.ACTIVE) > 0) {
+            return;
+        }
+
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceiveTime);
+        if (idleMillis >= IDLE_TIMEOUT_MILLIS) {
+            log.warn("Player %d in room %d is not responding", playerID, room.getRoomID());
+            Metrics.idleDisconnects.increment();
+            disconnect();
+            return;
+        }
+
+        // The client sends the time back, so nothing needs to be kept per ping
+        sendMessage(String.format("%s %d", Constants.pingCommand, TimeUnit.NANOSECONDS.toMicros(System.nanoTime())));
+        wheel.schedule(() -> heartbeat(wheel), PING_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Count bytes read from the client, called by the thread reading from it
+     * 
+     * @param bytes
+     */
+    void countBytesReceived(int bytes) {
+        bytesReceived += bytes;
+        Metrics.countBytesReceived(bytes);
+    }
+
+    /**
+     * Count bytes written to the client, called by the thread writing to it
+     * 
+     * @param bytes
+     */
+    void countBytesSent(int bytes) {
+        bytesSent += bytes;
+        Metrics.countBytesSent(bytes);
+    }
+
+    /**
+     * Stop reading from the client and close the socket once the queued
+     * messages, like the end of the match, have been written. Called by the
+     * room when it removes the client.
+     */
+    void close() {
+        if (!moveTo(State.DRAINING)) {
+            return;
+        }
+
+        outbound.finish();
+        onMessageQueued();
+
+        // A client that doesn't take its messages isn't waited on for long
+        TimingWheel wheel = Server.getTimingWheel();
+        if (wheel != null) {
+            wheel.schedule(this::closeSocket, DRAIN_TIMEOUT_MILLIS);
+        } else {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Close the socket right away, dropping the queued messages
+     */
+    void closeSocket() {
+        if (!moveTo(State.CLOSED)) {
+            return;
+        }
+
+        outbound.close();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            log.warn("Error closing connection of player %d: %s", playerID, e.getMessage());
+        }
+    }
+
+    /**
+     * The connection ended or failed. Closes the socket and removes the client
+     * from its room, which releases its slot and tiles. Only the first call
+     * does anything, and nothing is done for a client the room already removed.
+     */
+    void disconnect() {
+        closeSocket();
+        room.removeClientSocket(this);
     }
 
     @Override
@@ -42,69 +245,230 @@ class ClientHandler implements Runnable {
             // You can use InputStream/OutputStream to handle communication with the client.
             OutputStream os = clientSocket.getOutputStream();
             InputStream is = clientSocket.getInputStream();
-            out = new PrintWriter(os, true);
-            in = new BufferedReader(new InputStreamReader(is));
+            out = new BufferedOutputStream(os);
+            in = new DataInputStream(new BufferedInputStream(is));
+
+            // Messages are written on their own thread so a slow client only slows
+            // down itself
+            Server.execute(this::writeMessages);
+
+            sendPlayerID();
+            activate();
+
+            while (isActive()) {
+                // The protocol can change after any message
+                boolean isBinary = isBinaryProtocol;
+                int length = readMessage(isBinary);
+                if (length == -1) {
+                    log.info("Player %d in room %d closed the connection.", playerID, room.getRoomID());
+                    break;
+                }
+                handleMessage(messageBuffer, 0, length, isBinary);
+            }
+        } catch (IOException e) {
+            // Expected once the server closed the socket itself
+            if (isActive()) {
+                log.warn("Error handling client: %s", e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            log.error("Error handling player %d, disconnecting: %s", playerID, e.getMessage(), e);
+        } finally {
+            // A draining client is closed by the writer once the queued messages
+            // are written, or by the drain timeout
+            if (getState().compareTo(State.DRAINING) < 0) {
+                disconnect();
+            }
+        }
+    }
 
-            // Send playerID to the client when connecting
-            String sendPlayerID = "playerID " + playerID;
-            sendMessage(sendPlayerID);
+    /**
+     * Read the next message into the message buffer
+     * 
+     * @param isBinary true to read a binary frame, false to read a text line
+     * @return The length of the message, without the length prefix or line
+     *         ending, or -1 if the stream has ended
+     * @throws IOException
+     */
+    private int readMessage(boolean isBinary) throws IOException {
+        if (isBinary) {
+            try {
+                int length = in.readUnsignedShort();
+                ensureMessageCapacity(length);
+                in.readFully(messageBuffer, 0, length);
+                countBytesReceived(BinaryProtocol.headerSize + length);
+                return length;
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
 
-            String message;
+        int b = in.read();
+        if (b == -1) {
+            return -1;
+        }
 
-            while (Server.isPlayersLeft()) {
-                message = in.readLine();
-                handleMessage(message);
-            }
+        int length = 0;
+        while (b != -1 && b != '\n') {
+            ensureMessageCapacity(length + 1);
+            messageBuffer[length++] = (byte) b;
+            b = in.read();
+        }
 
-            // Remove the client socket from the list of active client sockets upon
-            // disconnection
-            Server.removeClientSocket(this);
-        } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
-            isClientConnected = false;
+        countBytesReceived(b == -1 ? length : length + 1);
+
+        // Strip the carriage return if the client sent \r\n
+        if (length > 0 && messageBuffer[length - 1] == '\r') {
+            length--;
         }
+
+        return length;
+    }
+
+    private void ensureMessageCapacity(int length) throws IOException {
+        if (length <= messageBuffer.length) {
+            return;
+        }
+
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message is too long");
+        }
+
+        messageBuffer = Arrays.copyOf(messageBuffer,
+                Math.min(MAX_MESSAGE_SIZE, Math.max(length, messageBuffer.length * 2)));
+    }
+
+    /**
+     * Send playerID to the client when connecting, followed by the room and
+     * session token it needs to resume its slot if the connection drops
+     */
+    void sendPlayerID() {
+        String sendPlayerID = "playerID " + playerID;
+        sendMessage(sendPlayerID);
+        sendMessage(String.format("%s %d %d", Constants.sessionCommand, room.getRoomID(),
+                room.getSessionToken(playerID)));
     }
 
     /**
-     * Handle messages from the client
+     * Handle a text message from the client
      * 
      * @param message The message from the client
      */
-    private void handleMessage(String message) {
+    void handleMessage(String message) {
         if (message == null) {
             return;
         }
 
-        String[] tokens = message.split(" ");
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        handleMessage(bytes, 0, bytes.length, false);
+    }
 
-        if (tokens.length == 0) {
+    /**
+     * Handle a message from the client. The drawing and cursor messages are
+     * parsed from the bytes and relayed without being turned into text, every
+     * other command is handled as text.
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @param isBinary true for a binary frame without the length prefix, false
+     *                 for a text line without the line ending
+     */
+    void handleMessage(byte[] data, int offset, int length, boolean isBinary) {
+        long start = System.nanoTime();
+        lastReceiveTime = start;
+        byte opcode = inbound.parse(data, offset, length, isBinary);
+        Metrics.Command command;
+
+        if (messageLog.isTraceEnabled()) {
+            messageLog.trace("Received message from player %d: %s", playerID, inbound.toText());
+        }
+
+        // Spectators only watch, nothing they send about the board is used
+        if (playerID == -1 && opcode != BinaryProtocol.textOpcode) {
+            Metrics.recordCommand(Metrics.Command.UNKNOWN, System.nanoTime() - start);
             return;
         }
 
-        System.out.println("Received message: " + message);
+        // The player ID in the message comes from the client, the board and the
+        // other clients only ever see the ID of this connection
+        inbound.setPlayerID(playerID);
 
-        String commandToken = tokens[0];
+        // Drawing before the match starts would build the board before its size
+        // is picked
+        if (opcode != BinaryProtocol.textOpcode && opcode != BinaryProtocol.cursorOpcode
+                && !room.isGameStarted()) {
+            Metrics.recordCommand(Metrics.Command.UNKNOWN, System.nanoTime() - start);
+            return;
+        }
 
-        switch (commandToken) {
-            case (Constants.captureCommand):
-                handleCapture(tokens);
+        switch (opcode) {
+            case BinaryProtocol.cursorOpcode:
+                // Only the latest position is kept, the room sends it on the next tick
+                room.updateCursor(playerID, inbound.getCursorX(), inbound.getCursorY());
+                command = Metrics.Command.CURSOR;
                 break;
-            case (Constants.startDrawCommand):
-                handleStartDraw(tokens);
+            case BinaryProtocol.drawOpcode:
+                handleDraw(inbound);
+                command = Metrics.Command.DRAW;
                 break;
-            case (Constants.endDrawCommand):
-                handleEndDraw(tokens);
+            case BinaryProtocol.strokeOpcode:
+                handleDraw(inbound);
+                command = Metrics.Command.STROKE;
                 break;
-            case (Constants.cursorCommand):
-                broadcastMessage(message);
+            case BinaryProtocol.endDrawOpcode:
+                handleEndDraw(inbound);
+                command = Metrics.Command.END_DRAW;
                 break;
-            case (Constants.startCommand):
-                startGame();
+            case BinaryProtocol.captureOpcode:
+                handleCapture(inbound);
+                command = Metrics.Command.CAPTURE;
                 break;
             default:
-                System.out.println("Unrecognized command: " + commandToken);
+                command = handleTextMessage(inbound.toText());
                 break;
         }
+
+        Metrics.recordCommand(command, System.nanoTime() - start);
+    }
+
+    /**
+     * Handle the commands that are only sent a few times per game
+     * 
+     * @param message
+     * @return The command that was handled, for the metrics
+     */
+    private Metrics.Command handleTextMessage(String message) {
+        String[] tokens = message.split(" ");
+
+        if (tokens.length == 0) {
+            return Metrics.Command.UNKNOWN;
+        }
+
+        String commandToken = tokens[0];
+
+        switch (commandToken) {
+            case (Constants.startCommand):
+                startGame(tokens);
+                return Metrics.Command.START;
+            case (Constants.protocolCommand):
+                handleProtocol(tokens);
+                return Metrics.Command.PROTOCOL;
+            case (Constants.resumeCommand):
+                handleResume(tokens);
+                return Metrics.Command.RESUME;
+            case (Constants.viewCommand):
+                handleView(tokens);
+                return Metrics.Command.VIEW;
+            case (Constants.spectateCommand):
+                handleSpectate(tokens);
+                return Metrics.Command.SPECTATE;
+            case (Constants.pongCommand):
+                handlePong(tokens);
+                return Metrics.Command.PONG;
+            default:
+                messageLog.warn("Unrecognized command: %s", commandToken);
+                return Metrics.Command.UNKNOWN;
+        }
     }
 
     /**
@@ -114,11 +478,41 @@ class ClientHandler implements Runnable {
      * @param message Message to broadcast
      */
     private void broadcastMessage(String message) {
-        for (ClientHandler socket : Server.getClientSockets()) {
+        long start = System.nanoTime();
+        // Encoded once per protocol instead of once per client
+        OutboundMessage outboundMessage = new OutboundMessage(message);
+        for (ClientHandler socket : room.getClientSockets()) {
             if (socket != this && socket.getSocket().isConnected()) {
-                socket.sendMessage(message);
+                socket.sendMessage(outboundMessage);
+            }
+        }
+        Metrics.broadcast.recordSince(start);
+    }
+
+    /**
+     * Relay a message from this client to all other clients
+     * 
+     * @param message Message to relay
+     */
+    private void broadcastMessage(InboundMessage message) {
+        broadcastMessage(message, -1L);
+    }
+
+    /**
+     * Relay a message from this client to the other clients that can see it
+     * 
+     * @param message     Message to relay
+     * @param subscribers Players to relay to, one bit per player slot
+     */
+    private void broadcastMessage(InboundMessage message, long subscribers) {
+        long start = System.nanoTime();
+        for (ClientHandler socket : room.getClientSockets()) {
+            if (socket != this && socket.getSocket().isConnected()
+                    && InterestGrid.isSubscribed(subscribers, socket.getPLayerID())) {
+                socket.relayMessage(message);
             }
         }
+        Metrics.broadcast.recordSince(start);
     }
 
     /**
@@ -127,67 +521,93 @@ class ClientHandler implements Runnable {
      * @param message Message to broadcast
      */
     private void broadcastMessageToAll(String message) {
-        for (ClientHandler socket : Server.getClientSockets()) {
+        OutboundMessage outboundMessage = new OutboundMessage(message);
+        for (ClientHandler socket : room.getClientSockets()) {
             if (socket != this && socket.getSocket().isConnected()) {
-                socket.sendMessage(message);
+                socket.sendMessage(outboundMessage);
             }
-            out.println(message);
         }
+        sendMessage(outboundMessage);
     }
 
     /**
-     * Handles the start draw event, checks if the tile is already being drawn by
-     * another user or captured by another user
+     * Handles the start draw event and batches of points drawn on one tile
+     * (stroke), checks if the tile is already being drawn by another user or
+     * captured by another user
      * 
      * If the tile is already being drawn or captured by another user, then don't
-     * draw and don't broadcast the message and send an error message to the client
+     * draw and don't broadcast the message
      * 
-     * Else mark the tile as being drawn by the player and broadcast the message to
-     * all other clients
+     * Else mark the tile as being drawn by the player and relay the message to
+     * the other clients that can see the tile. A stroke is only checked once for
+     * the whole batch.
      * 
-     * @param tokens The tokens in the form: <command> <tile x> <tile y> <player id>
+     * @param message
      */
-    private void handleStartDraw(String[] tokens) {
-        // Tokens are <tile x> <tile y> <player id>
-        int playerID = Integer.parseInt(tokens[6]);
-        int tileX = Integer.parseInt(tokens[1]);
-        int tileY = Integer.parseInt(tokens[2]);
-
-        // Check if the tile is already being drawn on or captured by another player
-        // the tile is being drawn on or captured by another player, so don't draw and
-        // don't broadcast the message
-        if (ServerBoard.getInstance().attemptDrawTile(tileX, tileY, playerID)) {
-            broadcastMessage(String.join(" ", tokens));
+    private void handleDraw(InboundMessage message) {
+        ServerBoard board = room.getBoard();
+        int row = message.getTileX();
+        int col = message.getTileY();
+
+        if (board.attemptDrawTile(row, col, playerID)) {
+            // Keep track of how much of the tile is drawn over, captures are
+            // checked against it
+            if (message.getOpcode() == BinaryProtocol.strokeOpcode) {
+                board.addCoverage(row, col, playerID, message.getPoints(), message.getPointCount());
+            } else {
+                drawPoint[0] = message.getX();
+                drawPoint[1] = message.getY();
+                board.addCoverage(row, col, playerID, drawPoint, 1);
+            }
+            broadcastMessage(message, room.getInterest().getSubscribers(row, col));
         }
     }
 
     /**
-     * Handles the capture event, checks if the tile is already being drawn by
-     * another user or captured by another user
+     * Handles the capture event, checks if the player is drawing the tile and
+     * has drawn over enough of it
      * 
-     * If the tile is already being drawn or captured by another user, then don't
-     * capture and don't broadcast the message and send an error message to the
-     * client
+     * If not, then don't capture. If the player was drawing the tile, it is
+     * released and every client is told, including the one that sent the
+     * capture, so it can take back the capture it showed. Otherwise only the
+     * player is sent who owns the tile, or a release if nobody does.
      * 
      * Else mark the tile as being captured by the player and broadcast the message
      * to all other clients
      * 
-     * @param tokens The tokens in the form: <command> <tile x> <tile y> <player id>
+     * @param message
      */
-    private void handleCapture(String[] tokens) {
-        // Tokens are <tile x> <tile y> <player id>
-        int playerID = Integer.parseInt(tokens[3]);
-        int tileX = Integer.parseInt(tokens[1]);
-        int tileY = Integer.parseInt(tokens[2]);
-
-        // Check if the tile has been captured or is being drawn on by another player
-        if (ServerBoard.getInstance().attemptCaptureTile(tileX, tileY, playerID)) {
-            // Take the tile and mark it as captured by the player
-            broadcastMessage(String.join(" ", tokens));
-
-            if (ServerBoard.getInstance().allTilesCaptured()) {
+    private void handleCapture(InboundMessage message) {
+        ServerBoard board = room.getBoard();
+        int row = message.getTileX();
+        int col = message.getTileY();
+        int sequence = board.attemptCaptureTile(row, col, playerID);
+        if (sequence != -1) {
+            // Take the tile and mark it as captured by the player, the sequence
+            // number lets clients that reconnect skip the changes they have seen
+            message.setSequence(sequence);
+            broadcastMessage(message);
+
+            if (board.allTilesCaptured()) {
                 endGame();
             }
+            return;
+        }
+
+        sequence = board.releaseTile(row, col, playerID);
+        if (sequence != -1) {
+            message.setReleased(sequence);
+            broadcastMessage(message);
+            relayMessage(message);
+            return;
+        }
+
+        // The player wasn't drawing the tile, so nobody else saw the capture
+        int owner = board.getCapturedBy(row, col);
+        if (owner != -1) {
+            sendMessage(String.format("%s %d %d %d", Constants.captureCommand, row, col, owner));
+        } else {
+            sendMessage(String.format("%s %d %d %d", Constants.endDrawCommand, row, col, playerID));
         }
     }
 
@@ -195,30 +615,214 @@ class ClientHandler implements Runnable {
      * Handles the end draw event, unmarks the tile as being drawn by the player and
      * broadcasts the message to all other clients
      * 
-     * @param tokens The tokens in the form: <command> <tile x> <tile y> <player id>
+     * @param message
      */
-    private void handleEndDraw(String[] tokens) {
-        // Tokens are <tile x> <tile y> <player id>
-        int playerID = Integer.parseInt(tokens[3]);
-        int tileX = Integer.parseInt(tokens[1]);
-        int tileY = Integer.parseInt(tokens[2]);
+    private void handleEndDraw(InboundMessage message) {
+        // Unmark the tile as being drawn by the player
+        int sequence = room.getBoard().releaseTile(message.getTileX(), message.getTileY(), playerID);
+        // Nothing to clear on the other clients if the player wasn't drawing the
+        // tile, and a release without a sequence could clear a capture
+        if (sequence != -1) {
+            message.setSequence(sequence);
+            broadcastMessage(message);
+        }
+    }
 
-        ServerBoard serverBoard = ServerBoard.getInstance();
+    /**
+     * Handles a client that lost its connection during a match and wants its
+     * slot back. The client leaves the room it was put in when it connected,
+     * and is sent the board changes after the last one it saw.
+     * 
+     * @param tokens The tokens in the form: <command> <room id> <player id>
+     *               <session token> <last sequence>
+     */
+    private void handleResume(String[] tokens) {
+        if (tokens.length < 5) {
+            sendMessage(Constants.resumeCommand + " -1");
+            return;
+        }
 
-        // Unmark the tile as being drawn by the player
-        serverBoard.releaseTile(tileX, tileY, playerID);
-        broadcastMessage(String.join(" ", tokens));
+        Room resumedRoom;
+        int resumedPlayerID;
+        long token;
+        int lastSequence;
+        try {
+            resumedRoom = Lobby.getInstance().getRoom(Integer.parseInt(tokens[1]));
+            resumedPlayerID = Integer.parseInt(tokens[2]);
+            token = Long.parseLong(tokens[3]);
+            lastSequence = Integer.parseInt(tokens[4]);
+        } catch (NumberFormatException e) {
+            sendMessage(Constants.resumeCommand + " -1");
+            return;
+        }
+
+        Room previousRoom = room;
+        int previousPlayerID = playerID;
+
+        if (resumedRoom == null || resumedRoom == previousRoom) {
+            sendMessage(Constants.resumeCommand + " -1");
+            return;
+        }
+
+        // Set before joining so the room sees the resumed player ID
+        room = resumedRoom;
+        playerID = resumedPlayerID;
+
+        if (!resumedRoom.resumePlayer(this, resumedPlayerID, token)) {
+            room = previousRoom;
+            playerID = previousPlayerID;
+            sendMessage(Constants.resumeCommand + " -1");
+            return;
+        }
+
+        previousRoom.detachClientSocket(this, previousPlayerID);
+
+        sendMessage(Constants.resumeCommand + " " + playerID);
+        for (String message : resumedRoom.getSyncMessages(lastSequence)) {
+            sendMessage(message);
+        }
+    }
+
+    /**
+     * Handles a client that wants to watch a match instead of playing. The
+     * client gives up its player slot and moves to the room as a spectator. If
+     * the match has started it is sent the start and a snapshot of the board.
+     * 
+     * @param tokens The tokens in the form: <command> [<room id>] <player id>,
+     *               without a room id the first match in progress is watched
+     */
+    private void handleSpectate(String[] tokens) {
+        Room watchedRoom = tokens.length >= 3 ? Lobby.getInstance().getRoom(Integer.parseInt(tokens[1]))
+                : Lobby.getInstance().findStartedRoom();
+
+        if (watchedRoom == null) {
+            sendMessage(Constants.spectateCommand + " -1");
+            return;
+        }
+
+        Room previousRoom = room;
+        int previousPlayerID = playerID;
+
+        if (watchedRoom != previousRoom || previousPlayerID != -1) {
+            previousRoom.detachClientSocket(this, previousPlayerID);
+            // Set before joining so the room counts a spectator
+            room = watchedRoom;
+            playerID = -1;
+            watchedRoom.addClientSocket(this);
+        }
+
+        sendMessage(Constants.spectateCommand + " " + watchedRoom.getRoomID());
+        if (watchedRoom.isGameStarted()) {
+            sendMessage(String.format("%s %d %d %d", Constants.startCommand, watchedRoom.getPlayerCount(),
+                    watchedRoom.getBoardRows(), watchedRoom.getBoardCols()));
+            for (String message : watchedRoom.getSyncMessages(-1)) {
+                sendMessage(message);
+            }
+        }
+    }
+
+    /**
+     * Handles the answer to a ping. The round trip time is smoothed like TCP
+     * does, an eighth of each new sample.
+     * 
+     * @param tokens The tokens in the form: <command> <server time in
+     *               microseconds> <player id>
+     */
+    private void handlePong(String[] tokens) {
+        if (tokens.length < 2) {
+            return;
+        }
+
+        long sample = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()) - Long.parseLong(tokens[1]);
+        if (sample < 0) {
+            return;
+        }
+
+        Metrics.pingRoundTrip.record(TimeUnit.MICROSECONDS.toNanos(sample));
+        long sampleMillis = TimeUnit.MICROSECONDS.toMillis(sample);
+        roundTripMillis = roundTripMillis == -1 ? sampleMillis : (7 * roundTripMillis + sampleMillis) / 8;
+    }
+
+    /**
+     * Handles the part of the board the client can see. Drawing and cursors
+     * outside of it aren't sent to the client, captures and releases always are.
+     * 
+     * @param tokens The tokens in the form: <command> <first row> <first col>
+     *               <last row> <last col> <player id>
+     */
+    private void handleView(String[] tokens) {
+        // Views are sent once the client has the board, one sent earlier is ignored
+        if (tokens.length < 5 || !room.isGameStarted()) {
+            return;
+        }
+
+        try {
+            room.getInterest().setView(playerID, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]),
+                    Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]));
+        } catch (NumberFormatException e) {
+            // The previous view is kept
+            messageLog.debug("Malformed view from player %d", playerID);
+        }
+    }
+
+    /**
+     * Handles the protocol request sent by clients that want to use binary frames.
+     * If the version is supported it is sent back and both directions switch to
+     * binary frames, otherwise version 0 is sent back and the client keeps using
+     * text.
+     * 
+     * @param tokens The tokens in the form: <command> <version>
+     */
+    private void handleProtocol(String[] tokens) {
+        // A missing or garbled version is answered like an unsupported one
+        int version = 0;
+        try {
+            version = tokens.length >= 2 ? Integer.parseInt(tokens[1]) : 0;
+        } catch (NumberFormatException e) {
+            messageLog.debug("Malformed protocol request from player %d", playerID);
+        }
+
+        if (version != BinaryProtocol.version) {
+            sendMessage(Constants.protocolCommand + " 0");
+            return;
+        }
+
+        // Switch while holding the send lock so no text message can be sent after
+        // the reply
+        synchronized (this) {
+            sendMessage(Constants.protocolCommand + " " + version);
+            isBinaryProtocol = true;
+        }
     }
 
     /**
-     * Tells server to not accept any more clients and lets
-     * clients know to start the game
+     * Tells the room to not accept any more clients and lets
+     * clients know to start the game. The client starting the game may pick the
+     * board size, otherwise the default size is used.
+     * 
+     * @param tokens The tokens in the form: <command> [<rows> <cols>] <player id>
      */
-    private void startGame() {
-        Server.stopAcceptingClients();
+    private void startGame(String[] tokens) {
+        if (playerID == -1) {
+            messageLog.debug("Spectator tried to start the game in room %d", room.getRoomID());
+            return;
+        }
+
+        if (tokens.length >= 4) {
+            try {
+                room.setBoardSize(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+            } catch (NumberFormatException e) {
+                // The game starts with the default size
+                messageLog.debug("Malformed board size from player %d", playerID);
+            }
+        }
 
-        // message containing the start command and the current player count
-        String message = String.format("%s %d", Constants.startCommand, Server.getPlayerCount());
+        room.stopAcceptingClients();
+
+        // message containing the start command, the current player count and the
+        // board size
+        String message = String.format("%s %d %d %d", Constants.startCommand, room.getPlayerCount(),
+                room.getBoardRows(), room.getBoardCols());
 
         // Send that the game is starting all players
         broadcastMessage(message);
@@ -228,7 +832,7 @@ class ClientHandler implements Runnable {
      * Ends the game and sends the scores to all clients
      */
     public void endGame() {
-        int[] playerScores = ServerBoard.getInstance().getPlayerScores();
+        int[] playerScores = room.getBoard().getPlayerScores();
 
         String message = Constants.endCommand + " ";
 
@@ -239,19 +843,154 @@ class ClientHandler implements Runnable {
 
         broadcastMessageToAll(message);
 
+        // Close the connections and give the room back to the lobby
+        room.clear();
+    }
+
+    /**
+     * Writes queued messages to the client until the queue is closed
+     */
+    private void writeMessages() {
         try {
-            Server.clear();
+            List<byte[]> batch = outbound.take();
+
+            while (batch != null) {
+                int bytes = 0;
+                for (byte[] message : batch) {
+                    out.write(message);
+                    bytes += message.length;
+                }
+                out.flush();
+                countBytesSent(bytes);
+
+                batch = outbound.take();
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Failed to clear:" + e);
+            if (isActive()) {
+                log.warn("Error writing to client: %s", e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Everything queued has been written if the client is draining
+        disconnect();
+    }
+
+    /**
+     * Queues a message to be sent to the client. Clients that are too far behind
+     * to queue more messages are disconnected.
+     * 
+     * @param message
+     */
+    void sendMessage(String message) {
+        boolean isQueued;
+
+        // Encode while holding the lock so the protocol can't change in between
+        synchronized (this) {
+            isQueued = outbound.offer(encodeMessage(message));
+        }
+
+        afterOffer(isQueued);
+    }
+
+    /**
+     * Queues a message sent to many clients, in the bytes already encoded for
+     * this client's protocol if another client used it
+     * 
+     * @param message
+     */
+    void sendMessage(OutboundMessage message) {
+        boolean isQueued;
+
+        synchronized (this) {
+            isQueued = outbound.offer(message.getBytes(isBinaryProtocol));
         }
+
+        afterOffer(isQueued);
+    }
+
+    /**
+     * Queues a message from another client, in the bytes it was received in if
+     * this client uses the same protocol
+     * 
+     * @param message
+     */
+    void relayMessage(InboundMessage message) {
+        boolean isQueued;
+
+        synchronized (this) {
+            isQueued = outbound.offer(message.getRelay(isBinaryProtocol));
+        }
+
+        afterOffer(isQueued);
+    }
+
+    private void afterOffer(boolean isQueued) {
+        if (!isQueued) {
+            // Messages sent while the client is closing are dropped on purpose
+            if (isActive()) {
+                disconnectSlowClient();
+            }
+            return;
+        }
+
+        onMessageQueued();
+    }
+
+    /**
+     * Queues the latest cursor positions of the other players that are in this
+     * client's view. Cursor positions that haven't been written yet are replaced
+     * instead of piling up.
+     * 
+     * @param textCursors   Cursor message of each player as text, null if it
+     *                      hasn't moved
+     * @param binaryCursors Cursor message of each player as a binary frame
+     * @param subscribers   Players that can see each cursor, one bit per player
+     *                      slot
+     */
+    void sendCursors(byte[][] textCursors, byte[][] binaryCursors, long[] subscribers) {
+        boolean isQueued = false;
+
+        synchronized (this) {
+            byte[][] cursors = isBinaryProtocol ? binaryCursors : textCursors;
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] != null && i != playerID && InterestGrid.isSubscribed(subscribers[i], playerID)) {
+                    outbound.offerCursor(i, cursors[i]);
+                    isQueued = true;
+                }
+            }
+        }
+
+        if (isQueued) {
+            onMessageQueued();
+        }
+    }
+
+    /**
+     * Called after a message has been queued. The writer thread is already
+     * waiting on the queue, the NIO handler uses this to ask for a write.
+     */
+    void onMessageQueued() {
+    }
+
+    private void disconnectSlowClient() {
+        if (!room.getClientSockets().contains(this)) {
+            return;
+        }
+
+        log.warn("Player %d can't keep up with messages, disconnecting.", playerID);
+        Metrics.countSlowClientDisconnected();
+        disconnect();
     }
 
     /**
-     * Sends a message to the client
+     * Encode the message in the protocol used by this client
      * 
      * @param message
+     * @return
      */
-    private void sendMessage(String message) {
-        out.println(message);
+    byte[] encodeMessage(String message) {
+        return OutboundMessage.encode(message, isBinaryProtocol);
     }
 }
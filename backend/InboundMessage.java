@@ -0,0 +1,665 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A message from a client, parsed straight from the bytes it arrived in. Each
+ * client handler reuses one instance for all of its messages, so the frequent
+ * drawing and cursor messages are parsed into primitive fields without
+ * creating strings or token arrays.
+ *
+ * The message is relayed to the other clients in the bytes it arrived in when
+ * they use the same protocol, otherwise it is encoded from the parsed fields.
+ * Either way it is encoded at most once per protocol, every client gets the
+ * same bytes. Commands that are only sent a few times per game are not parsed
+ * here, they are handled as text like before.
+ */
+class InboundMessage {
+    // Text commands parsed here, indexed the same as TEXT_OPCODES
+    private static final byte[][] TEXT_COMMANDS = { bytes(Constants.cursorCommand),
+            bytes(Constants.startDrawCommand), bytes(Constants.strokeCommand), bytes(Constants.endDrawCommand),
+            bytes(Constants.captureCommand) };
+    private static final byte[] TEXT_OPCODES = { BinaryProtocol.cursorOpcode, BinaryProtocol.drawOpcode,
+            BinaryProtocol.strokeOpcode, BinaryProtocol.endDrawOpcode, BinaryProtocol.captureOpcode };
+    private static final int CURSOR_SCALE = 0xFFFF;
+
+    // The command, one of the BinaryProtocol opcodes. Commands that aren't
+    // parsed here are textOpcode.
+    private byte opcode;
+    private int tileX;
+    private int tileY;
+    private int x;
+    private int y;
+    private int playerID;
+    // Cursor position quantized to 0-65535 like binary frames
+    private int cursorX;
+    private int cursorY;
+    // Stroke points as x, y pairs
+    private int[] points = new int[2 * Constants.strokeBatchSize];
+    private int pointCount;
+    // Sequence number added by the server to captures and releases, -1 if none
+    private int sequence;
+
+    // The bytes the message arrived in, without the length prefix or new line
+    private byte[] data;
+    private int offset;
+    private int length;
+    private boolean isBinary;
+
+    // Set when a parsed field was replaced, the bytes can't be relayed as they are
+    private boolean isRewritten;
+
+    // Encoded messages to relay, created the first time each protocol is needed
+    private byte[] textRelay;
+    private byte[] binaryRelay;
+
+    // Integers in a text message, reused between messages
+    private int[] numbers = new int[2 * Constants.strokeBatchSize + 4];
+
+    /**
+     * Parse a message. The bytes are only used until the next message is
+     * parsed, they are copied if the message is relayed.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @param isBinary true for a binary frame without the length prefix, false
+     *                 for a text line without the new line
+     * @return The opcode of the command, textOpcode if it isn't parsed here
+     */
+    public byte parse(byte[] data, int offset, int length, boolean isBinary) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.isBinary = isBinary;
+        textRelay = null;
+        binaryRelay = null;
+        sequence = -1;
+        pointCount = 0;
+        isRewritten = false;
+
+        try {
+            opcode = isBinary ? parseBinary() : parseText();
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // Malformed, let the text handling report it
+            opcode = BinaryProtocol.textOpcode;
+        }
+
+        return opcode;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int getTileX() {
+        return tileX;
+    }
+
+    public int getTileY() {
+        return tileY;
+    }
+
+    public int getPlayerID() {
+        return playerID;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Get the stroke points, only valid until the next message is parsed
+     *
+     * @return x, y pairs, getPointCount() of them
+     */
+    public int[] getPoints() {
+        return points;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getCursorX() {
+        return cursorX;
+    }
+
+    public int getCursorY() {
+        return cursorY;
+    }
+
+    /**
+     * Set the sequence number of the board change, it is added to the message
+     * when it is relayed
+     *
+     * @param sequence
+     */
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+        textRelay = null;
+        binaryRelay = null;
+    }
+
+    /**
+     * Set the player that sent the message. The player ID in the message comes
+     * from the client, if it doesn't match it is replaced and the message is
+     * encoded again when relayed.
+     *
+     * @param playerID
+     */
+    public void setPlayerID(int playerID) {
+        if (this.playerID == playerID) {
+            return;
+        }
+
+        this.playerID = playerID;
+        isRewritten = true;
+        textRelay = null;
+        binaryRelay = null;
+    }
+
+    /**
+     * Turn a refused capture into the release of the tile, so it can be sent to
+     * every client including the one that sent it
+     *
+     * @param sequence Sequence number of the release
+     */
+    public void setReleased(int sequence) {
+        opcode = BinaryProtocol.endDrawOpcode;
+        setSequence(sequence);
+    }
+
+    /**
+     * Decode the message as text, for the commands that aren't parsed here
+     *
+     * @return
+     */
+    public String toText() {
+        if (isBinary) {
+            return BinaryProtocol.decode(ByteBuffer.wrap(data, offset, length));
+        }
+
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the message to relay to a client
+     *
+     * @param toBinary true if the client uses binary frames
+     * @return The encoded message, including the length prefix or new line. The
+     *         same array is returned for every client using the protocol, it must
+     *         not be changed.
+     */
+    public byte[] getRelay(boolean toBinary) {
+        if (toBinary) {
+            if (binaryRelay == null) {
+                binaryRelay = isBinary && sequence == -1 && !isRewritten ? copyFrame() : encodeBinary();
+            }
+            return binaryRelay;
+        }
+
+        if (textRelay == null) {
+            textRelay = !isBinary && sequence == -1 && !isRewritten ? copyLine() : encodeText();
+        }
+        return textRelay;
+    }
+
+    private byte parseBinary() {
+        requireLength(1);
+        int position = offset;
+        byte command = data[position++];
+
+        switch (command) {
+            case BinaryProtocol.cursorOpcode:
+                requireLength(6);
+                playerID = data[position];
+                cursorX = readUnsignedShort(position + 1);
+                cursorY = readUnsignedShort(position + 3);
+                return command;
+            case BinaryProtocol.drawOpcode:
+                requireLength(10);
+                tileX = readUnsignedShort(position);
+                tileY = readUnsignedShort(position + 2);
+                x = (short) readUnsignedShort(position + 4);
+                y = (short) readUnsignedShort(position + 6);
+                playerID = data[position + 8];
+                return command;
+            case BinaryProtocol.strokeOpcode: {
+                requireLength(8);
+                tileX = readUnsignedShort(position);
+                tileY = readUnsignedShort(position + 2);
+                playerID = data[position + 4];
+                int count = readUnsignedShort(position + 5);
+                requireLength(8 + 4 * count);
+                ensurePointCapacity(count);
+                position += 7;
+                for (int i = 0; i < count * 2; i++, position += 2) {
+                    points[i] = (short) readUnsignedShort(position);
+                }
+                pointCount = count;
+                return command;
+            }
+            case BinaryProtocol.endDrawOpcode:
+            case BinaryProtocol.captureOpcode:
+                requireLength(6);
+                tileX = readUnsignedShort(position);
+                tileY = readUnsignedShort(position + 2);
+                playerID = data[position + 4];
+                return command;
+            default:
+                return BinaryProtocol.textOpcode;
+        }
+    }
+
+    private byte parseText() {
+        int end = offset + length;
+        int commandStart = skipSpaces(offset, end);
+        int commandEnd = commandStart;
+        while (commandEnd < end && data[commandEnd] != ' ') {
+            commandEnd++;
+        }
+
+        byte command = BinaryProtocol.textOpcode;
+        for (int i = 0; i < TEXT_COMMANDS.length; i++) {
+            if (equals(TEXT_COMMANDS[i], commandStart, commandEnd)) {
+                command = TEXT_OPCODES[i];
+                break;
+            }
+        }
+
+        switch (command) {
+            case BinaryProtocol.cursorOpcode: {
+                // <x position> <y position> <player id>
+                int position = skipSpaces(commandEnd, end);
+                int tokenEnd = tokenEnd(position, end);
+                cursorX = quantize(data, position, tokenEnd);
+                position = skipSpaces(tokenEnd, end);
+                tokenEnd = tokenEnd(position, end);
+                cursorY = quantize(data, position, tokenEnd);
+                if (parseNumbers(tokenEnd, end) != 1) {
+                    throw malformed();
+                }
+                playerID = numbers[0];
+                return command;
+            }
+            case BinaryProtocol.drawOpcode:
+                // <tile x> <tile y> <x> <y> <player id> <player id>
+                if (parseNumbers(commandEnd, end) != 6) {
+                    throw malformed();
+                }
+                tileX = numbers[0];
+                tileY = numbers[1];
+                x = numbers[2];
+                y = numbers[3];
+                playerID = numbers[5];
+                return command;
+            case BinaryProtocol.strokeOpcode: {
+                // <tile x> <tile y> <x> <y> ... <player id>
+                int count = parseNumbers(commandEnd, end);
+                if (count < 3 || (count - 3) % 2 != 0) {
+                    throw malformed();
+                }
+                tileX = numbers[0];
+                tileY = numbers[1];
+                playerID = numbers[count - 1];
+                pointCount = (count - 3) / 2;
+                ensurePointCapacity(pointCount);
+                System.arraycopy(numbers, 2, points, 0, pointCount * 2);
+                return command;
+            }
+            case BinaryProtocol.endDrawOpcode:
+            case BinaryProtocol.captureOpcode:
+                // <tile x> <tile y> <player id>
+                if (parseNumbers(commandEnd, end) < 3) {
+                    throw malformed();
+                }
+                tileX = numbers[0];
+                tileY = numbers[1];
+                playerID = numbers[2];
+                return command;
+            default:
+                return command;
+        }
+    }
+
+    /**
+     * Parse the space separated integers from the position to the end into
+     * numbers
+     *
+     * @return The number of integers
+     */
+    private int parseNumbers(int position, int end) {
+        int count = 0;
+        position = skipSpaces(position, end);
+
+        while (position < end) {
+            boolean isNegative = data[position] == '-';
+            if (isNegative) {
+                position++;
+            }
+
+            int digitsStart = position;
+            long value = 0;
+            while (position < end && data[position] >= '0' && data[position] <= '9') {
+                value = value * 10 + (data[position] - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw malformed();
+                }
+                position++;
+            }
+
+            if (position == digitsStart || (position < end && data[position] != ' ')) {
+                throw malformed();
+            }
+
+            if (count == numbers.length) {
+                numbers = Arrays.copyOf(numbers, numbers.length * 2);
+            }
+            numbers[count++] = (int) (isNegative ? -value : value);
+            position = skipSpaces(position, end);
+        }
+
+        return count;
+    }
+
+    /**
+     * Quantize a cursor position like binary frames do. Plain decimals are read
+     * straight from the bytes, anything else goes through Double.parseDouble.
+     */
+    private static int quantize(byte[] data, int start, int end) {
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        int position = start;
+
+        while (position < end && data[position] >= '0' && data[position] <= '9') {
+            whole = whole * 10 + (data[position++] - '0');
+            if (whole > 1) {
+                break;
+            }
+        }
+
+        if (position < end && data[position] == '.') {
+            position++;
+            // Digits past the 9th don't change the quantized value
+            while (position < end && data[position] >= '0' && data[position] <= '9') {
+                if (scale < 1_000_000_000L) {
+                    fraction = fraction * 10 + (data[position] - '0');
+                    scale *= 10;
+                }
+                position++;
+            }
+        }
+
+        double value;
+        if (position == end && position > start) {
+            value = whole + (double) fraction / scale;
+        } else {
+            value = Double.parseDouble(new String(data, start, end - start, StandardCharsets.US_ASCII));
+        }
+
+        return (int) Math.round(Math.max(0, Math.min(1, value)) * CURSOR_SCALE);
+    }
+
+    private static NumberFormatException malformed() {
+        return new NumberFormatException("Malformed message");
+    }
+
+    private void requireLength(int required) {
+        if (length < required) {
+            throw new IndexOutOfBoundsException("Frame is too short");
+        }
+    }
+
+    private int readUnsignedShort(int position) {
+        return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+    }
+
+    private int skipSpaces(int position, int end) {
+        while (position < end && data[position] == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private int tokenEnd(int position, int end) {
+        while (position < end && data[position] != ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private boolean equals(byte[] command, int start, int end) {
+        if (end - start != command.length) {
+            return false;
+        }
+
+        for (int i = 0; i < command.length; i++) {
+            if (data[start + i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensurePointCapacity(int count) {
+        if (points.length < count * 2) {
+            points = new int[count * 2];
+        }
+    }
+
+    private byte[] copyFrame() {
+        byte[] frame = new byte[BinaryProtocol.headerSize + length];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+        System.arraycopy(data, offset, frame, BinaryProtocol.headerSize, length);
+        return frame;
+    }
+
+    private byte[] copyLine() {
+        byte[] line = new byte[length + 1];
+        System.arraycopy(data, offset, line, 0, length);
+        line[length] = '\n';
+        return line;
+    }
+
+    private byte[] encodeBinary() {
+        FrameWriter frame;
+
+        switch (opcode) {
+            case BinaryProtocol.cursorOpcode:
+                return encodeCursor(playerID, cursorX, cursorY, true);
+            case BinaryProtocol.drawOpcode:
+                frame = new FrameWriter(10);
+                frame.putByte(opcode).putShort(tileX).putShort(tileY).putShort(x).putShort(y).putByte(playerID);
+                return frame.bytes;
+            case BinaryProtocol.strokeOpcode:
+                frame = new FrameWriter(8 + 4 * pointCount);
+                frame.putByte(opcode).putShort(tileX).putShort(tileY).putByte(playerID).putShort(pointCount);
+                for (int i = 0; i < pointCount * 2; i++) {
+                    frame.putShort(points[i]);
+                }
+                return frame.bytes;
+            default:
+                // Capture or end draw
+                frame = new FrameWriter(sequence == -1 ? 6 : 10);
+                frame.putByte(opcode).putShort(tileX).putShort(tileY).putByte(playerID);
+                if (sequence != -1) {
+                    frame.putInt(sequence);
+                }
+                return frame.bytes;
+        }
+    }
+
+    private byte[] encodeText() {
+        TextWriter text;
+
+        switch (opcode) {
+            case BinaryProtocol.cursorOpcode:
+                return encodeCursor(playerID, cursorX, cursorY, false);
+            case BinaryProtocol.drawOpcode:
+                // The player id is sent twice by the text protocol
+                text = new TextWriter(Constants.startDrawCommand, 6);
+                text.put(tileX).put(tileY).put(x).put(y).put(playerID).put(playerID);
+                return text.toBytes();
+            case BinaryProtocol.strokeOpcode:
+                text = new TextWriter(Constants.strokeCommand, 3 + 2 * pointCount);
+                text.put(tileX).put(tileY);
+                for (int i = 0; i < pointCount * 2; i++) {
+                    text.put(points[i]);
+                }
+                text.put(playerID);
+                return text.toBytes();
+            default:
+                text = new TextWriter(opcode == BinaryProtocol.captureOpcode ? Constants.captureCommand
+                        : Constants.endDrawCommand, 4);
+                text.put(tileX).put(tileY).put(playerID);
+                if (sequence != -1) {
+                    text.put(sequence);
+                }
+                return text.toBytes();
+        }
+    }
+
+    /**
+     * Encode a cursor position
+     *
+     * @param playerID
+     * @param x        The position quantized to 0-65535
+     * @param y        The position quantized to 0-65535
+     * @param toBinary
+     * @return The encoded message, including the length prefix or new line
+     */
+    static byte[] encodeCursor(int playerID, int x, int y, boolean toBinary) {
+        if (toBinary) {
+            FrameWriter frame = new FrameWriter(6);
+            frame.putByte(BinaryProtocol.cursorOpcode).putByte(playerID).putShort(x).putShort(y);
+            return frame.bytes;
+        }
+
+        TextWriter text = new TextWriter(Constants.cursorCommand, 3);
+        text.putFraction(x).putFraction(y).put(playerID);
+        return text.toBytes();
+    }
+
+    /**
+     * Encode a cursor position sent out on a cursor tick, stamped with the time
+     * of the tick so clients can move the cursor smoothly between positions
+     *
+     * @param playerID
+     * @param x        The position quantized to 0-65535
+     * @param y        The position quantized to 0-65535
+     * @param time     Milliseconds on the server's clock, wraps around
+     * @param toBinary
+     * @return The encoded message, including the length prefix or new line
+     */
+    static byte[] encodeCursor(int playerID, int x, int y, int time, boolean toBinary) {
+        if (toBinary) {
+            FrameWriter frame = new FrameWriter(10);
+            frame.putByte(BinaryProtocol.cursorOpcode).putByte(playerID).putShort(x).putShort(y).putInt(time);
+            return frame.bytes;
+        }
+
+        TextWriter text = new TextWriter(Constants.cursorCommand, 4);
+        text.putFraction(x).putFraction(y).put(playerID).put(time);
+        return text.toBytes();
+    }
+
+    private static byte[] bytes(String command) {
+        return command.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes a binary frame of a known size, including the length prefix
+     */
+    private static class FrameWriter {
+        private byte[] bytes;
+        private int position = BinaryProtocol.headerSize;
+
+        FrameWriter(int length) {
+            bytes = new byte[BinaryProtocol.headerSize + length];
+            bytes[0] = (byte) (length >> 8);
+            bytes[1] = (byte) length;
+        }
+
+        FrameWriter putByte(int value) {
+            bytes[position++] = (byte) value;
+            return this;
+        }
+
+        FrameWriter putShort(int value) {
+            bytes[position++] = (byte) (value >> 8);
+            bytes[position++] = (byte) value;
+            return this;
+        }
+
+        FrameWriter putInt(int value) {
+            return putShort(value >> 16).putShort(value);
+        }
+    }
+
+    /**
+     * Writes a text command followed by space separated numbers and a new line
+     */
+    private static class TextWriter {
+        // Longest number written is a negative int
+        private static final int MAX_NUMBER_LENGTH = 12;
+
+        private byte[] bytes;
+        private int position;
+
+        TextWriter(String command, int numberCount) {
+            bytes = new byte[command.length() + numberCount * MAX_NUMBER_LENGTH + 1];
+            for (int i = 0; i < command.length(); i++) {
+                bytes[position++] = (byte) command.charAt(i);
+            }
+        }
+
+        TextWriter put(int value) {
+            bytes[position++] = ' ';
+            long remaining = value;
+            if (remaining < 0) {
+                bytes[position++] = '-';
+                remaining = -remaining;
+            }
+
+            int start = position;
+            do {
+                bytes[position++] = (byte) ('0' + remaining % 10);
+                remaining /= 10;
+            } while (remaining > 0);
+
+            // Digits were written backwards
+            for (int i = start, j = position - 1; i < j; i++, j--) {
+                byte digit = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = digit;
+            }
+            return this;
+        }
+
+        /**
+         * Write a quantized cursor position as a decimal with 6 digits, like %f
+         */
+        TextWriter putFraction(int quantized) {
+            long millionths = Math.round((double) quantized / CURSOR_SCALE * 1_000_000);
+            bytes[position++] = ' ';
+            bytes[position++] = (byte) ('0' + millionths / 1_000_000);
+            bytes[position++] = '.';
+            for (long divisor = 100_000; divisor > 0; divisor /= 10) {
+                bytes[position++] = (byte) ('0' + millionths / divisor % 10);
+            }
+            return this;
+        }
+
+        byte[] toBytes() {
+            bytes[position++] = '\n';
+            return Arrays.copyOf(bytes, position);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Which players can see each part of the board. The board is split into
+ * square buckets of tiles and every bucket keeps a bit mask of the player
+ * slots whose view overlaps it, so finding who to send a drawing or cursor
+ * update to is a single array read.
+ *
+ * Players that haven't sent a view yet see the whole board. The masks are
+ * replaced instead of changed in place, so the players handling messages
+ * never wait on a player scrolling its view.
+ */
+class InterestGrid {
+    // Tiles per side of a bucket
+    private static final int BUCKET_SIZE = 8;
+
+    private int rows;
+    private int cols;
+    private int bucketRows;
+    private int bucketCols;
+    // Players subscribed to each bucket, one bit per player slot
+    private volatile long[] subscribers;
+    // Players that have sent a view
+    private boolean[] hasView;
+
+    InterestGrid(int rows, int cols, int playerSlots) {
+        this.rows = rows;
+        this.cols = cols;
+        bucketRows = (rows + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        bucketCols = (cols + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        hasView = new boolean[playerSlots];
+
+        long[] masks = new long[bucketRows * bucketCols];
+        long everyone = playerSlots >= 64 ? -1L : (1L << playerSlots) - 1;
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = everyone;
+        }
+        subscribers = masks;
+    }
+
+    /**
+     * Get the players that can see the tile
+     *
+     * @param row
+     * @param col
+     * @return One bit per player slot, 0 if the tile isn't on the board
+     */
+    public long getSubscribers(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols) {
+            return 0;
+        }
+
+        return subscribers[(row / BUCKET_SIZE) * bucketCols + col / BUCKET_SIZE];
+    }
+
+    /**
+     * Checks if the player can see the tile. Spectators, without a player slot,
+     * see the whole board.
+     *
+     * @param subscribers Mask from getSubscribers
+     * @param playerID    -1 for a spectator
+     * @return
+     */
+    public static boolean isSubscribed(long subscribers, int playerID) {
+        if (playerID == -1) {
+            return true;
+        }
+
+        return playerID >= 0 && playerID < 64 && (subscribers & (1L << playerID)) != 0;
+    }
+
+    /**
+     * Set the tiles the player can see, replacing its previous view. The
+     * rectangle is clamped to the board.
+     *
+     * @param playerID
+     * @param firstRow
+     * @param firstCol
+     * @param lastRow
+     * @param lastCol
+     */
+    public synchronized void setView(int playerID, int firstRow, int firstCol, int lastRow, int lastCol) {
+        if (playerID < 0 || playerID >= hasView.length) {
+            return;
+        }
+
+        firstRow = Math.max(0, Math.min(firstRow, rows - 1));
+        lastRow = Math.max(firstRow, Math.min(lastRow, rows - 1));
+        firstCol = Math.max(0, Math.min(firstCol, cols - 1));
+        lastCol = Math.max(firstCol, Math.min(lastCol, cols - 1));
+
+        long bit = 1L << playerID;
+        long[] masks = subscribers.clone();
+
+        for (int bucketRow = 0; bucketRow < bucketRows; bucketRow++) {
+            for (int bucketCol = 0; bucketCol < bucketCols; bucketCol++) {
+                int bucket = bucketRow * bucketCols + bucketCol;
+                if (bucketRow >= firstRow / BUCKET_SIZE && bucketRow <= lastRow / BUCKET_SIZE
+                        && bucketCol >= firstCol / BUCKET_SIZE && bucketCol <= lastCol / BUCKET_SIZE) {
+                    masks[bucket] |= bit;
+                } else {
+                    masks[bucket] &= ~bit;
+                }
+            }
+        }
+
+        hasView[playerID] = true;
+        subscribers = masks;
+    }
+
+    /**
+     * Let the player see the whole board again, used when its slot is freed
+     *
+     * @param playerID
+     */
+    public synchronized void clearView(int playerID) {
+        if (playerID < 0 || playerID >= hasView.length || !hasView[playerID]) {
+            return;
+        }
+
+        long bit = 1L << playerID;
+        long[] masks = subscribers.clone();
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] |= bit;
+        }
+
+        hasView[playerID] = false;
+        subscribers = masks;
+    }
+}
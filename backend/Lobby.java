@@ -0,0 +1,102 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of every room hosted by the server. New clients are placed in
+ * the first room that is still waiting for players, and rooms whose match has
+ * ended are kept in a pool to be reused instead of being created again.
+ */
+class Lobby {
+    // Number of finished rooms kept around to be reused
+    private static final int MAX_POOLED_ROOMS = 64;
+    private static final Log log = Log.get(Log.Category.LOBBY);
+
+    private static Lobby instance;
+    private int nextRoomID = 0;
+    private Map<Integer, Room> activeRooms = new LinkedHashMap<>();
+    private Deque<Room> freeRooms = new ArrayDeque<>();
+
+    private Lobby() {
+    }
+
+    public static synchronized Lobby getInstance() {
+        if (instance == null) {
+            instance = new Lobby();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Find a room for a new client to join. Uses a room that is waiting for
+     * players if there is one, otherwise opens a new room.
+     *
+     * @return
+     */
+    public synchronized Room findRoom() {
+        for (Room room : activeRooms.values()) {
+            if (room.isJoinable()) {
+                return room;
+            }
+        }
+
+        Room room = freeRooms.poll();
+        if (room == null) {
+            room = new Room(nextRoomID++, Constants.maxPlayers);
+        }
+
+        activeRooms.put(room.getRoomID(), room);
+        log.info("Opened room %d. Active rooms: %d", room.getRoomID(), activeRooms.size());
+        return room;
+    }
+
+    /**
+     * Give a cleared room back to the lobby so it can host another match
+     *
+     * @param room
+     */
+    public synchronized void recycleRoom(Room room) {
+        if (activeRooms.remove(room.getRoomID()) == null) {
+            return;
+        }
+
+        if (freeRooms.size() < MAX_POOLED_ROOMS) {
+            freeRooms.push(room);
+        }
+
+        log.info("Closed room %d. Active rooms: %d", room.getRoomID(), activeRooms.size());
+    }
+
+    /**
+     * Get an active room by its ID
+     *
+     * @param roomID
+     * @return The room or null if there is no active room with the ID
+     */
+    public synchronized Room getRoom(int roomID) {
+        return activeRooms.get(roomID);
+    }
+
+    /**
+     * Find a match to watch
+     *
+     * @return The first room with a match in progress, or null if there is none
+     */
+    public synchronized Room findStartedRoom() {
+        for (Room room : activeRooms.values()) {
+            if (room.isGameStarted()) {
+                return room;
+            }
+        }
+
+        return null;
+    }
+
+    public synchronized List<Room> getRooms() {
+        return new ArrayList<>(activeRooms.values());
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append only record of a match: every stroke batch drawn on a tile the player
+ * holds, and every capture and release with its sequence number. MatchReplay
+ * reads it back to rebuild the board at any point of the match.
+ *
+ * Recording only copies the event into a buffer in memory. A background
+ * thread swaps the buffer for an empty one every few milliseconds and writes
+ * the full one to the file, so the players never wait on the disk. Journals
+ * are written to the journal.dir directory, an empty value turns them off:
+ *
+ * <pre>
+ * -Djournal.dir=journals
+ * </pre>
+ *
+ * The file starts with a header and is followed by the events, all big
+ * endian:
+ *
+ * <pre>
+ * header  magic (s32) format (s16) room id (s32) rows (u16) cols (u16)
+ *         player slots (u8) start time in epoch millis (s64)
+ * event   type (u8) millis since the start (s32) then by type:
+ *         stroke            row (u16) col (u16) player id (u8) count (u16)
+ *                           count x, y pairs (s16)
+ *         capture, release  sequence (s32) row (u16) col (u16) player id (u8)
+ *         end               player slots scores (s32)
+ * </pre>
+ */
+class MatchJournal {
+    static final int MAGIC = 0x44434A4E;
+    static final short FORMAT = 1;
+    static final byte STROKE = 1;
+    static final byte CAPTURE = 2;
+    static final byte RELEASE = 3;
+    static final byte END = 4;
+
+    private static final String DEFAULT_DIRECTORY = "journals";
+    private static final long FLUSH_MILLIS = 200;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    // A journal whose writes fall this far behind stops recording
+    private static final int MAX_BUFFER_BYTES = 64 * 1024 * 1024;
+    private static final Log log = Log.get(Log.Category.ROOM);
+
+    private static final Set<MatchJournal> journals = ConcurrentHashMap.newKeySet();
+    private static ScheduledExecutorService writer = null;
+
+    private Path path;
+    private long startNanos = System.nanoTime();
+    // Events waiting to be written, guarded by the journal
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private boolean isClosed = false;
+    private boolean isBroken = false;
+
+    // Only used while holding the write lock
+    private final Object writeLock = new Object();
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private FileChannel channel;
+
+    private MatchJournal(Path path, int roomID, int rows, int cols, int playerSlots) {
+        this.path = path;
+        buffer.putInt(MAGIC).putShort(FORMAT).putInt(roomID).putShort((short) rows).putShort((short) cols)
+                .put((byte) playerSlots).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Start the journal of a match. The file is only created by the writer.
+     *
+     * @param roomID
+     * @param rows
+     * @param cols
+     * @param playerSlots
+     * @return The journal, or null if journals are turned off
+     */
+    public static MatchJournal start(int roomID, int rows, int cols, int playerSlots) {
+        String directory = System.getProperty("journal.dir", DEFAULT_DIRECTORY);
+        if (directory.isEmpty()) {
+            return null;
+        }
+
+        String name = String.format("room-%d-%d.journal", roomID, System.currentTimeMillis());
+        MatchJournal journal = new MatchJournal(Paths.get(directory, name), roomID, rows, cols, playerSlots);
+        journals.add(journal);
+        startWriter();
+        return journal;
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+
+        writer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "journal-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(MatchJournal::flushAll, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write what every journal has recorded, and close the files of the ended
+     * matches. Run by the writer, and when the server shuts down.
+     */
+    public static void flushAll() {
+        for (MatchJournal journal : journals) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Record the points of a stroke batch, after the player got the tile
+     *
+     * @param row
+     * @param col
+     * @param playerID
+     * @param points     x, y pairs relative to the tile
+     * @param pointCount Number of pairs
+     */
+    public synchronized void recordStroke(int row, int col, int playerID, int[] points, int pointCount) {
+        if (!reserve(12 + 4 * pointCount)) {
+            return;
+        }
+
+        buffer.put(STROKE).putInt(elapsedMillis()).putShort((short) row).putShort((short) col)
+                .put((byte) playerID).putShort((short) pointCount);
+        for (int i = 0; i < pointCount * 2; i++) {
+            // Points past the range are outside the tile either way
+            buffer.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, points[i])));
+        }
+    }
+
+    /**
+     * Record a capture or release, in the order of the sequence numbers
+     *
+     * @param sequence
+     * @param row
+     * @param col
+     * @param playerID
+     * @param isCapture
+     */
+    public synchronized void recordChange(int sequence, int row, int col, int playerID, boolean isCapture) {
+        if (!reserve(14)) {
+            return;
+        }
+
+        buffer.put(isCapture ? CAPTURE : RELEASE).putInt(elapsedMillis()).putInt(sequence).putShort((short) row)
+                .putShort((short) col).put((byte) playerID);
+    }
+
+    /**
+     * Record the scores and stop recording. The rest of the journal is written
+     * and the file closed by the writer.
+     *
+     * @param scores
+     */
+    public synchronized void close(int[] scores) {
+        if (reserve(5 + 4 * scores.length)) {
+            buffer.put(END).putInt(elapsedMillis());
+            for (int score : scores) {
+                buffer.putInt(score);
+            }
+        }
+
+        isClosed = true;
+    }
+
+    private int elapsedMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Make room in the buffer for an event
+     *
+     * @param bytes
+     * @return false if the journal isn't recording
+     */
+    private boolean reserve(int bytes) {
+        if (isClosed || isBroken) {
+            return false;
+        }
+
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+
+        int required = buffer.position() + bytes;
+        if (required > MAX_BUFFER_BYTES) {
+            // A journal with a gap can't be replayed, stop instead of using up memory
+            isBroken = true;
+            log.warn("Journal %s fell behind, it stopped recording.", path);
+            return false;
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_BUFFER_BYTES, Math.max(required, 2 * buffer.capacity())));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+        return true;
+    }
+
+    /**
+     * Swap the buffer for the spare one and write it to the file
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            ByteBuffer full;
+            boolean isLast;
+
+            synchronized (this) {
+                isLast = isClosed || isBroken;
+                full = buffer;
+                buffer = spare;
+            }
+
+            long start = System.nanoTime();
+            try {
+                full.flip();
+                if (full.hasRemaining()) {
+                    if (channel == null) {
+                        Files.createDirectories(path.getParent());
+                        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND);
+                    }
+
+                    while (full.hasRemaining()) {
+                        channel.write(full);
+                    }
+                    Metrics.journalFlush.recordSince(start);
+                }
+            } catch (IOException e) {
+                log.warn("Error writing journal %s: %s", path, e.getMessage());
+                synchronized (this) {
+                    isBroken = true;
+                }
+                isLast = true;
+            }
+
+            full.clear();
+            spare = full;
+
+            if (isLast) {
+                closeChannel();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        journals.remove(this);
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing journal %s: %s", path, e.getMessage());
+        }
+        channel = null;
+    }
+}
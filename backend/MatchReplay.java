@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a journal written by MatchJournal and rebuilds the board of the match
+ * at any sequence number. The journal is memory mapped and read once when it
+ * is opened, keeping a copy of the board every few changes. Seeking starts
+ * from the last copy before the sequence, so it only replays the events after
+ * it however long the match was.
+ *
+ * Run it where the server was compiled to look at a match, the board is
+ * printed as it was after the given change, or at the end of the match:
+ *
+ * <pre>
+ * java MatchReplay journals/room-0-1700000000000.journal [sequence]
+ * </pre>
+ *
+ * A journal cut short by a crash is read up to its last whole event.
+ */
+class MatchReplay {
+    // Changes between copies of the board, more on large boards so the copies
+    // don't take more memory than the journal
+    private static final int MIN_KEYFRAME_INTERVAL = 256;
+    private static final int KEYFRAME_TILES_PER_CHANGE = 16;
+    private static final int HEADER_BYTES = 23;
+
+    /**
+     * Events of a match in the order they happened
+     */
+    interface Listener {
+        /**
+         * @param millis     Time since the start of the match
+         * @param row
+         * @param col
+         * @param playerID
+         * @param points     x, y pairs relative to the tile
+         * @param pointCount Number of pairs
+         */
+        void onStroke(int millis, int row, int col, int playerID, int[] points, int pointCount);
+
+        /**
+         * @param millis    Time since the start of the match
+         * @param sequence
+         * @param row
+         * @param col
+         * @param playerID
+         * @param isCapture false for a release
+         */
+        void onChange(int millis, int sequence, int row, int col, int playerID, boolean isCapture);
+    }
+
+    /**
+     * Copy of the board after a change, and where the events after it start
+     */
+    private static class Keyframe {
+        int sequence;
+        int position;
+        int[] tiles;
+    }
+
+    private ByteBuffer data;
+    private int roomID;
+    private int rows;
+    private int cols;
+    private int playerSlots;
+    private long startTime;
+    private int lastSequence = 0;
+    private int strokeCount = 0;
+    private int durationMillis = 0;
+    // Scores in the end event, null if the journal has no end
+    private int[] finalScores = null;
+    private List<Keyframe> keyframes = new ArrayList<>();
+    // Reused for the points of every stroke
+    private int[] points = new int[2 * Constants.strokeBatchSize];
+
+    private MatchReplay(ByteBuffer data) throws IOException {
+        this.data = data;
+
+        if (data.remaining() < HEADER_BYTES || data.getInt() != MatchJournal.MAGIC) {
+            throw new IOException("Not a match journal");
+        }
+        short format = data.getShort();
+        if (format != MatchJournal.FORMAT) {
+            throw new IOException("Unknown journal format " + format);
+        }
+
+        roomID = data.getInt();
+        rows = Short.toUnsignedInt(data.getShort());
+        cols = Short.toUnsignedInt(data.getShort());
+        playerSlots = Byte.toUnsignedInt(data.get());
+        startTime = data.getLong();
+
+        index();
+    }
+
+    /**
+     * Open a journal and read it through once
+     *
+     * @param path
+     * @return
+     * @throws IOException If the file can't be read or isn't a journal
+     */
+    public static MatchReplay open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new MatchReplay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Replay the whole journal, keeping a copy of the board every few changes
+     */
+    private void index() {
+        ServerBoard board = new ServerBoard(rows, cols, playerSlots);
+        int interval = Math.max(MIN_KEYFRAME_INTERVAL, rows * cols / KEYFRAME_TILES_PER_CHANGE);
+        addKeyframe(board, data.position());
+
+        replay(data.position(), Integer.MAX_VALUE, board, new Listener() {
+            @Override
+            public void onStroke(int millis, int row, int col, int playerID, int[] points, int pointCount) {
+                strokeCount++;
+                durationMillis = millis;
+            }
+
+            @Override
+            public void onChange(int millis, int sequence, int row, int col, int playerID, boolean isCapture) {
+                lastSequence = sequence;
+                durationMillis = millis;
+            }
+        }, interval);
+    }
+
+    private void addKeyframe(ServerBoard board, int position) {
+        Keyframe keyframe = new Keyframe();
+        keyframe.sequence = board.getVersion();
+        keyframe.position = position;
+        keyframe.tiles = board.getTiles();
+        keyframes.add(keyframe);
+    }
+
+    /**
+     * Apply the events from the position to the board until the change after the
+     * given sequence
+     *
+     * @param position         Start of the first event
+     * @param sequence         Last change to apply
+     * @param board
+     * @param listener         Told about every event applied, may be null
+     * @param keyframeInterval Changes between keyframes to add, 0 for none
+     * @return Position after the last event applied
+     */
+    private int replay(int position, int sequence, ServerBoard board, Listener listener, int keyframeInterval) {
+        ByteBuffer events = data.duplicate();
+        events.position(position);
+        int start = position;
+
+        try {
+            while (events.hasRemaining()) {
+                start = events.position();
+                byte type = events.get();
+                int millis = events.getInt();
+
+                switch (type) {
+                    case MatchJournal.STROKE: {
+                        int row = Short.toUnsignedInt(events.getShort());
+                        int col = Short.toUnsignedInt(events.getShort());
+                        int playerID = events.get();
+                        int count = Short.toUnsignedInt(events.getShort());
+                        if (points.length < 2 * count) {
+                            points = new int[2 * count];
+                        }
+                        for (int i = 0; i < 2 * count; i++) {
+                            points[i] = events.getShort();
+                        }
+
+                        if (board.attemptDrawTile(row, col, playerID)) {
+                            board.addCoverage(row, col, playerID, points, count);
+                        }
+                        if (listener != null) {
+                            listener.onStroke(millis, row, col, playerID, points, count);
+                        }
+                        break;
+                    }
+                    case MatchJournal.CAPTURE:
+                    case MatchJournal.RELEASE: {
+                        int changeSequence = events.getInt();
+                        if (changeSequence > sequence) {
+                            return start;
+                        }
+                        int row = Short.toUnsignedInt(events.getShort());
+                        int col = Short.toUnsignedInt(events.getShort());
+                        int playerID = events.get();
+                        boolean isCapture = type == MatchJournal.CAPTURE;
+
+                        board.replayChange(changeSequence, row, col, playerID, isCapture);
+                        if (listener != null) {
+                            listener.onChange(millis, changeSequence, row, col, playerID, isCapture);
+                        }
+                        if (keyframeInterval > 0 && changeSequence % keyframeInterval == 0) {
+                            addKeyframe(board, events.position());
+                        }
+                        break;
+                    }
+                    case MatchJournal.END:
+                        finalScores = new int[playerSlots];
+                        for (int i = 0; i < playerSlots; i++) {
+                            finalScores[i] = events.getInt();
+                        }
+                        durationMillis = millis;
+                        break;
+                    default:
+                        // Written by a newer server or corrupted, nothing after it can be read
+                        return start;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // The last event was cut short
+            return start;
+        }
+
+        return events.position();
+    }
+
+    /**
+     * Rebuild the board as it was after a change, including the tiles being
+     * drawn on. The coverage of tiles being drawn on before the closest keyframe
+     * isn't kept, a replayed board can't check captures of those tiles.
+     *
+     * @param sequence Sequence number of the change, the end of the match if
+     *                 it is past the last one
+     * @return
+     */
+    public ServerBoard getBoardAt(int sequence) {
+        // Last keyframe at or before the sequence
+        int low = 0;
+        int high = keyframes.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (keyframes.get(middle).sequence <= sequence) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        Keyframe keyframe = keyframes.get(low);
+        ServerBoard board = new ServerBoard(rows, cols, playerSlots);
+        board.restore(keyframe.tiles, keyframe.sequence);
+        replay(keyframe.position, sequence, board, null, 0);
+        return board;
+    }
+
+    /**
+     * Tell the listener about every event of the match in order, for example to
+     * send the strokes again to a test server
+     *
+     * @param listener
+     */
+    public void replay(Listener listener) {
+        replay(keyframes.get(0).position, Integer.MAX_VALUE, new ServerBoard(rows, cols, playerSlots), listener, 0);
+    }
+
+    public int getRoomID() {
+        return roomID;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getLastSequence() {
+        return lastSequence;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: MatchReplay <journal> [sequence]");
+            return;
+        }
+
+        MatchReplay replay = open(Paths.get(args[0]));
+        int sequence = args.length > 1 ? Integer.parseInt(args[1]) : replay.lastSequence;
+
+        System.out.printf("Room %d, %dx%d board, %d player slots, started %s%n", replay.roomID, replay.rows,
+                replay.cols, replay.playerSlots, Instant.ofEpochMilli(replay.startTime));
+        System.out.printf("%d changes, %d strokes, %.1f seconds%s%n", replay.lastSequence, replay.strokeCount,
+                replay.durationMillis / 1000.0, replay.finalScores == null ? ", no end recorded" : "");
+
+        ServerBoard board = replay.getBoardAt(sequence);
+        System.out.printf("%nBoard after change %d (digits are captures, letters tiles being drawn):%n",
+                board.getVersion());
+        int[] tiles = board.getTiles();
+        for (int row = 0; row < replay.rows; row++) {
+            StringBuilder line = new StringBuilder();
+            for (int col = 0; col < replay.cols; col++) {
+                int tile = tiles[row * replay.cols + col];
+                if (tile < 0) {
+                    line.append('.');
+                } else if (tile >= replay.playerSlots) {
+                    line.append(tile - replay.playerSlots);
+                } else {
+                    line.append((char) ('a' + tile));
+                }
+            }
+            System.out.println(line);
+        }
+
+        int[] scores = board.getPlayerScores();
+        StringBuilder line = new StringBuilder("Scores:");
+        for (int score : scores) {
+            line.append(' ').append(score);
+        }
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms of the running server. Counters are
+ * striped (LongAdder) so threads counting the same thing don't fight over one
+ * cache line, and histograms are the lock free log-linear ones in Histogram.
+ *
+ * The metrics are served as text by a small HTTP endpoint on the loopback
+ * address, one metric per line so they are easy to graph:
+ *
+ * <pre>
+ * curl localhost:3001
+ * </pre>
+ *
+ * They can also be written to a file every few seconds. Both are set with
+ * system properties:
+ *
+ * <pre>
+ * -Dmetrics.port=3001          0 turns the endpoint off
+ * -Dmetrics.file=metrics.txt   written every metrics.interval seconds
+ * -Dmetrics.interval=10
+ * </pre>
+ *
+ * Counters count from when the server started. Percentiles are over the last
+ * full interval so a regression isn't hidden by the hours before it.
+ */
+class Metrics {
+    private static final int DEFAULT_PORT = 3001;
+    private static final int DEFAULT_INTERVAL_SECONDS = 10;
+    private static final Log log = Log.get(Log.Category.SERVER);
+
+    /**
+     * Commands counted and timed when handled
+     */
+    enum Command {
+        CURSOR, DRAW, STROKE, END_DRAW, CAPTURE, START, PROTOCOL, RESUME, VIEW, SPECTATE, PONG, UNKNOWN;
+
+        private final String label = name().toLowerCase();
+    }
+
+    /**
+     * Histogram of durations in nanoseconds. Values are recorded in the current
+     * histogram, which becomes the reported one at the end of every interval.
+     */
+    static class Timer {
+        private LongAdder count = new LongAdder();
+        private Histogram current = new Histogram();
+        private Histogram last = new Histogram();
+
+        public void record(long nanos) {
+            count.increment();
+            current.record(nanos);
+        }
+
+        /**
+         * Record the time since the given System.nanoTime()
+         *
+         * @param start
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        private synchronized void rotate() {
+            last.reset();
+            last.add(current);
+            current.reset();
+        }
+
+        private synchronized void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            line(out, name + "_count", labels, count.sum());
+            line(out, name + "_micros", prefix + "quantile=\"0.5\"", last.getPercentile(50) / 1000.0);
+            line(out, name + "_micros", prefix + "quantile=\"0.99\"", last.getPercentile(99) / 1000.0);
+            line(out, name + "_micros", prefix + "quantile=\"0.999\"", last.getPercentile(99.9) / 1000.0);
+            line(out, name + "_micros", prefix + "quantile=\"1\"", last.getMax() / 1000.0);
+        }
+    }
+
+    // Messages received from clients, by command
+    private static final Timer[] commandTimers = new Timer[Command.values().length];
+
+    private static final LongAdder bytesReceived = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LongAdder connectionsAccepted = new LongAdder();
+    private static final LongAdder slowClientsDisconnected = new LongAdder();
+
+    // Time to queue a message for every other client in the room
+    static final Timer broadcast = new Timer();
+    // Time to queue the latest cursors for every client in a room
+    static final Timer cursorFlush = new Timer();
+    // Times a board compare and set lost to another player and was tried again
+    static final LongAdder boardRetries = new LongAdder();
+    // Captures of tiles the player wasn't drawing or hadn't drawn over enough
+    static final LongAdder capturesRefused = new LongAdder();
+    // Time waited for the board's change log
+    static final Timer boardLogWait = new Timer();
+    // Time to write a batch of match journal events to its file
+    static final Timer journalFlush = new Timer();
+    // Round trip time of pings to the clients
+    static final Timer pingRoundTrip = new Timer();
+    // Connections closed because nothing was received from them for too long
+    static final LongAdder idleDisconnects = new LongAdder();
+    // Tiles released because the player stopped drawing on them
+    static final LongAdder leasesExpired = new LongAdder();
+
+    private static final long startTime = System.currentTimeMillis();
+
+    static {
+        for (int i = 0; i < commandTimers.length; i++) {
+            commandTimers[i] = new Timer();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Count a handled message and the time it took to handle
+     *
+     * @param command
+     * @param nanos
+     */
+    public static void recordCommand(Command command, long nanos) {
+        commandTimers[command.ordinal()].record(nanos);
+    }
+
+    public static void countBytesReceived(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public static void countBytesSent(int bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public static void countConnectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    public static void countSlowClientDisconnected() {
+        slowClientsDisconnected.increment();
+    }
+
+    /**
+     * Start serving the metrics, and writing them to a file if one is set. The
+     * percentiles move on to the next interval on the given scheduler.
+     *
+     * @param scheduler
+     */
+    public static void start(ScheduledExecutorService scheduler) {
+        int interval = Integer.getInteger("metrics.interval", DEFAULT_INTERVAL_SECONDS);
+        String file = System.getProperty("metrics.file");
+
+        scheduler.scheduleAtFixedRate(() -> {
+            rotate();
+            if (file != null) {
+                writeFile(Paths.get(file));
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+
+        int port = Integer.getInteger("metrics.port", DEFAULT_PORT);
+        if (port > 0) {
+            startEndpoint(port);
+        }
+    }
+
+    private static void rotate() {
+        for (Timer timer : commandTimers) {
+            timer.rotate();
+        }
+        broadcast.rotate();
+        cursorFlush.rotate();
+        boardLogWait.rotate();
+        journalFlush.rotate();
+        pingRoundTrip.rotate();
+    }
+
+    /**
+     * Write the metrics to a temporary file and move it over the old one, so
+     * anything reading the file never sees half of it
+     *
+     * @param path
+     */
+    private static void writeFile(Path path) {
+        try {
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temporary, format().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Error writing metrics to %s: %s", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Answer every request on the port with the metrics. Only listens on the
+     * loopback address, the endpoint isn't meant to be reachable by players.
+     *
+     * @param port
+     */
+    private static void startEndpoint(int port) {
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            log.warn("Metrics endpoint could not listen on port %d: %s", port, e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(socket);
+                } catch (IOException e) {
+                    log.debug("Error serving metrics: %s", e.getMessage());
+                }
+            }
+        }, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Metrics available on http://localhost:%d", port);
+    }
+
+    private static void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(1000);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+        // Skip the request, every path gets the same answer
+        String line = in.readLine();
+        while (line != null && !line.isEmpty()) {
+            line = in.readLine();
+        }
+
+        byte[] body = format().getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                + body.length + "\r\nConnection: close\r\n\r\n";
+
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Format every metric as a line of <name>{<labels>} <value>
+     *
+     * @return
+     */
+    static String format() {
+        StringBuilder out = new StringBuilder(4096);
+        List<Room> rooms = Lobby.getInstance().getRooms();
+
+        int connections = 0;
+        int spectators = 0;
+        long queuedBytes = 0;
+        long maxQueuedBytes = 0;
+        StringBuilder perConnection = new StringBuilder();
+
+        for (Room room : rooms) {
+            spectators += room.getSpectatorCount();
+            for (ClientHandler clientHandler : room.getClientSockets()) {
+                connections++;
+                long queued = clientHandler.getOutbound().getQueuedBytes();
+                queuedBytes += queued;
+                maxQueuedBytes = Math.max(maxQueuedBytes, queued);
+
+                String labels = String.format("room=\"%d\",player=\"%d\"", room.getRoomID(),
+                        clientHandler.getPLayerID());
+                line(perConnection, "connection_bytes_received", labels, clientHandler.getBytesReceived());
+                line(perConnection, "connection_bytes_sent", labels, clientHandler.getBytesSent());
+                line(perConnection, "connection_queued_bytes", labels, queued);
+                line(perConnection, "connection_round_trip_millis", labels, clientHandler.getRoundTripMillis());
+            }
+        }
+
+        line(out, "uptime_seconds", "", (System.currentTimeMillis() - startTime) / 1000);
+        line(out, "rooms", "", rooms.size());
+        line(out, "connections", "", connections);
+        line(out, "spectators", "", spectators);
+        line(out, "connections_accepted_total", "", connectionsAccepted.sum());
+        line(out, "slow_clients_disconnected_total", "", slowClientsDisconnected.sum());
+        line(out, "bytes_received_total", "", bytesReceived.sum());
+        line(out, "bytes_sent_total", "", bytesSent.sum());
+        line(out, "outbound_queued_bytes", "", queuedBytes);
+        line(out, "outbound_queued_bytes_max", "", maxQueuedBytes);
+
+        for (Command command : Command.values()) {
+            String labels = "command=\"" + command.label + "\"";
+            commandTimers[command.ordinal()].write(out, "message_handle", labels);
+        }
+
+        broadcast.write(out, "broadcast", "");
+        cursorFlush.write(out, "cursor_flush", "");
+        line(out, "board_retries_total", "", boardRetries.sum());
+        line(out, "captures_refused_total", "", capturesRefused.sum());
+        boardLogWait.write(out, "board_log_wait", "");
+        journalFlush.write(out, "journal_flush", "");
+        pingRoundTrip.write(out, "ping_round_trip", "");
+        line(out, "idle_disconnects_total", "", idleDisconnects.sum());
+        line(out, "leases_expired_total", "", leasesExpired.sum());
+
+        out.append(perConnection);
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(String.format("%.3f", value)).append('\n');
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client handler used by the NIO server. Instead of blocking a thread on
+ * readLine(), the selector thread hands it whatever bytes are available and
+ * messages are split on new lines, or binary frames, here. Outgoing messages
+ * wait in the outbound queue and are moved to a per-connection buffer when the
+ * channel is writable, so they are only ever written by the selector thread.
+ */
+class NioClientHandler extends ClientHandler {
+    private static final int BUFFER_SIZE = 4096;
+    // Messages longer than this are treated as garbage and the client is dropped,
+    // it fits the largest binary frame
+    private static final int MAX_BUFFER_SIZE = 128 * 1024;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean isWriteRequested = false;
+
+    public NioClientHandler(SocketChannel channel, Selector selector, Room room) throws IOException {
+        super(channel.socket(), room);
+        this.channel = channel;
+
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads all available bytes from the channel and handles every complete
+     * message. Called by the selector thread when the channel is readable.
+     *
+     * @return false if the client has disconnected
+     */
+    boolean read() {
+        int bytesRead;
+
+        try {
+            bytesRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            if (isActive()) {
+                log.warn("Error handling client: %s", e.getMessage());
+            }
+            return false;
+        }
+
+        if (bytesRead == -1) {
+            log.info("Player %d in room %d closed the connection.", getPLayerID(), getRoom().getRoomID());
+            return false;
+        }
+
+        countBytesReceived(bytesRead);
+
+        readBuffer.flip();
+
+        // The protocol can change after any message, so check it for every
+        // message. A draining client's messages are ignored.
+        while (isActive() && handleNextMessage()) {
+        }
+
+        readBuffer.compact();
+
+        // A partial message filled the whole buffer, make room for the rest of it
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+                log.warn("Player %d sent a message that is too long", getPLayerID());
+                return false;
+            }
+
+            readBuffer = grow(readBuffer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Take the next complete message out of the read buffer and handle it. The
+     * message is parsed straight from the read buffer.
+     *
+     * @return false if the buffer doesn't hold a complete message
+     */
+    private boolean handleNextMessage() {
+        int start = readBuffer.position();
+        byte[] data = readBuffer.array();
+
+        if (isBinaryProtocol()) {
+            if (readBuffer.remaining() < BinaryProtocol.headerSize) {
+                return false;
+            }
+
+            int length = Short.toUnsignedInt(readBuffer.getShort(start));
+            if (readBuffer.remaining() < BinaryProtocol.headerSize + length) {
+                return false;
+            }
+
+            readBuffer.position(start + BinaryProtocol.headerSize + length);
+            handleMessage(data, readBuffer.arrayOffset() + start + BinaryProtocol.headerSize, length, true);
+            return true;
+        }
+
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') {
+                continue;
+            }
+
+            int lineEnd = i;
+            // Strip the carriage return if the client sent \r\n
+            if (lineEnd > start && readBuffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            readBuffer.position(i + 1);
+            handleMessage(data, readBuffer.arrayOffset() + start, lineEnd - start, false);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Ask the selector for a write once a message has been queued. Can be called
+     * from any thread.
+     */
+    @Override
+    synchronized void onMessageQueued() {
+        if (isWriteRequested || !key.isValid()) {
+            return;
+        }
+
+        isWriteRequested = true;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // Other threads may send messages, make sure the selector sees the change
+        key.selector().wakeup();
+    }
+
+    /**
+     * Moves queued messages to the write buffer and writes as much as the
+     * channel accepts. More messages are only taken from the queue once the
+     * buffer has been written, so a slow client backs up into its queue. Called
+     * by the selector thread when the channel is writable.
+     */
+    void flush() {
+        synchronized (this) {
+            isWriteRequested = false;
+        }
+
+        try {
+            if (writeBuffer.position() == 0) {
+                for (byte[] message : getOutbound().poll()) {
+                    while (writeBuffer.remaining() < message.length) {
+                        writeBuffer = grow(writeBuffer);
+                    }
+
+                    writeBuffer.put(message);
+                }
+            }
+
+            writeBuffer.flip();
+            countBytesSent(channel.write(writeBuffer));
+            writeBuffer.compact();
+        } catch (IOException e) {
+            if (isActive()) {
+                log.warn("Error writing to client: %s", e.getMessage());
+            }
+            disconnect();
+            return;
+        }
+
+        // Everything queued has been written if the client is draining
+        if (getState() == State.DRAINING && writeBuffer.position() == 0 && getOutbound().isFinished()) {
+            closeSocket();
+            return;
+        }
+
+        synchronized (this) {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (writeBuffer.position() > 0 || !getOutbound().isEmpty()) {
+                isWriteRequested = true;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
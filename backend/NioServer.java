@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Non-blocking TCP server used when the server is started in NIO mode. A
+ * single selector thread accepts connections and multiplexes reads and writes
+ * for every client instead of running a thread per client.
+ */
+class NioServer {
+    // How long the selector waits before checking if the server channel was closed
+    private static final int SELECT_TIMEOUT = 1000;
+    private static final Log log = Log.get(Log.Category.SERVER);
+    private static final Log connectionLog = Log.get(Log.Category.CONNECTION);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Open the server channel on the given port and run the event loop until the
+     * server channel is closed and every client has disconnected.
+     *
+     * @param port Port to listen on
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        log.info("Server listening on port %d (nio)", port);
+
+        try {
+            while (serverChannel.isOpen() || !selector.keys().isEmpty()) {
+                selector.select(SELECT_TIMEOUT);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handleKey(key);
+                    } catch (RuntimeException e) {
+                        // A bad message only drops the client that sent it
+                        handleKeyError(key, e);
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+
+        NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+
+        if (key.isReadable() && !clientHandler.read()) {
+            disconnect(clientHandler);
+            return;
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            clientHandler.flush();
+        }
+    }
+
+    /**
+     * Drop the client whose key failed and keep serving everyone else
+     *
+     * @param key
+     * @param e
+     */
+    private void handleKeyError(SelectionKey key, RuntimeException e) {
+        if (!(key.attachment() instanceof NioClientHandler)) {
+            log.error("Error accepting connection: %s", e.getMessage(), e);
+            return;
+        }
+
+        NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+        log.error("Error handling player %d, disconnecting: %s", clientHandler.getPLayerID(), e.getMessage(), e);
+        disconnect(clientHandler);
+        key.cancel();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        Room room = Lobby.getInstance().findRoom();
+        NioClientHandler clientHandler = new NioClientHandler(channel, selector, room);
+        room.addClientSocket(clientHandler);
+        clientHandler.startHeartbeat(Server.getTimingWheel());
+        Metrics.countConnectionAccepted();
+        clientHandler.sendPlayerID();
+        clientHandler.activate();
+        connectionLog.info("%d players connected to room %d", room.getPlayerCount(), room.getRoomID());
+    }
+
+    private void disconnect(NioClientHandler clientHandler) {
+        // Does nothing if the heartbeat or the end of the match already removed it
+        clientHandler.disconnect();
+    }
+}
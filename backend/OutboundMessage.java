@@ -0,0 +1,60 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message from the server to many clients, like the start and end of a
+ * match. It is encoded at most once per protocol and every client gets the
+ * same bytes, so sending it to a room costs one encoding and a queue offer per
+ * client. Only used by the thread sending it.
+ */
+class OutboundMessage {
+    private String text;
+    // Encoded messages, created the first time each protocol is needed
+    private byte[] textBytes;
+    private byte[] binaryBytes;
+
+    OutboundMessage(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Encode a message for a single client
+     *
+     * @param text
+     * @param toBinary
+     * @return
+     */
+    static byte[] encode(String text, boolean toBinary) {
+        if (toBinary) {
+            return BinaryProtocol.encode(text);
+        }
+
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the message to send to a client
+     *
+     * @param toBinary true if the client uses binary frames
+     * @return The encoded message, including the length prefix or new line. The
+     *         same array is returned for every client using the protocol, it must
+     *         not be changed.
+     */
+    public byte[] getBytes(boolean toBinary) {
+        if (toBinary) {
+            if (binaryBytes == null) {
+                binaryBytes = encode(text, true);
+            }
+            return binaryBytes;
+        }
+
+        if (textBytes == null) {
+            textBytes = encode(text, false);
+        }
+        return textBytes;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Messages waiting to be written to one client. Senders only add to the
+ * queue, so a client with a slow connection never blocks the player that sent
+ * the message or the other clients.
+ *
+ * Cursor positions are coalesced, only the latest position of each player is
+ * kept. Every other message is kept until it is written, if the client falls
+ * so far behind that the queue goes over the high water mark the message is
+ * refused and the client should be disconnected.
+ */
+class OutboundQueue {
+    // Bytes queued before the client is considered too slow to keep up
+    private static final int HIGH_WATER_MARK = 1024 * 1024;
+
+    private Deque<byte[]> messages = new ArrayDeque<>();
+    // Latest cursor position of each player, null if there is none to send
+    private byte[][] cursors = new byte[Constants.maxPlayers][];
+    private int queuedBytes = 0;
+    // Set when no more messages are taken, the queued ones are still written
+    private boolean isFinishing = false;
+    private boolean isClosed = false;
+
+    /**
+     * Add an encoded message to the queue
+     *
+     * @param message
+     * @return false if the queue is over the high water mark or closed
+     */
+    public synchronized boolean offer(byte[] message) {
+        if (isClosed || isFinishing || queuedBytes + message.length > HIGH_WATER_MARK) {
+            return false;
+        }
+
+        messages.add(message);
+        queuedBytes += message.length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Set the cursor position of the player to send, replacing any position of
+     * the same player that hasn't been written yet
+     *
+     * @param playerID
+     * @param message
+     */
+    public synchronized void offerCursor(int playerID, byte[] message) {
+        if (isClosed || isFinishing || playerID < 0 || playerID >= cursors.length) {
+            return;
+        }
+
+        if (cursors[playerID] != null) {
+            queuedBytes -= cursors[playerID].length;
+        }
+
+        cursors[playerID] = message;
+        queuedBytes += message.length;
+        notifyAll();
+    }
+
+    /**
+     * Take every queued message, waiting until there is at least one
+     *
+     * @return The messages or null if the queue has been closed, or finished
+     *         and everything in it taken
+     * @throws InterruptedException
+     */
+    public synchronized List<byte[]> take() throws InterruptedException {
+        while (!isClosed && !isFinishing && queuedBytes == 0) {
+            wait();
+        }
+
+        if (isClosed || queuedBytes == 0) {
+            return null;
+        }
+
+        return poll();
+    }
+
+    /**
+     * Take every queued message without waiting
+     *
+     * @return The messages, empty if there are none
+     */
+    public synchronized List<byte[]> poll() {
+        List<byte[]> batch = new ArrayList<>(messages);
+        messages.clear();
+
+        for (int i = 0; i < cursors.length; i++) {
+            if (cursors[i] != null) {
+                batch.add(cursors[i]);
+                cursors[i] = null;
+            }
+        }
+
+        queuedBytes = 0;
+        return batch;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queuedBytes == 0;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Stop taking messages, the writer takes what is left and then stops
+     */
+    public synchronized void finish() {
+        isFinishing = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isFinished() {
+        return (isFinishing || isClosed) && queuedBytes == 0;
+    }
+
+    /**
+     * Drop everything in the queue and wake up the writer so it can stop
+     */
+    public synchronized void close() {
+        isClosed = true;
+        messages.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+}
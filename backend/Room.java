@@ -0,0 +1,524 @@
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single match hosted by the server. Each room has its own board, player
+ * slots and connected clients. When the match ends the room is cleared and
+ * handed back to the lobby so it can be reused for the next match.
+ *
+ * Each player slot has a secret session token. A player that loses its
+ * connection during the match can take its slot back with the token and is
+ * sent the board changes it missed.
+ *
+ * Connections without a player slot are spectators. They are sent everything
+ * that happens in the room but can't change the board, and don't count as
+ * players.
+ */
+class Room {
+    // Board owners sent per sync message, keeps binary frames under 64KB
+    private static final int SYNC_RUNS_PER_MESSAGE = 4096;
+    private static final int MAX_RUN_LENGTH = 0xFFFF;
+    // Number of quantized cursor positions across the board
+    private static final int CURSOR_POSITIONS = 0x10000;
+    // Tiles are released when the player drawing them sends no stroke for this long
+    private static final long TILE_LEASE_MILLIS = 10000;
+    private static final SecureRandom random = new SecureRandom();
+    private static final Log log = Log.get(Log.Category.ROOM);
+
+    private int roomID;
+    private int playerCount = 0;
+    private int spectatorCount = 0;
+    // Read without the lock for every drawing message
+    private volatile boolean gameStarted = false;
+    private ServerBoard board = null;
+    // Created with the board, the players that can see each part of it
+    private InterestGrid interest = null;
+    // Created with the board, null if journals are turned off
+    private MatchJournal journal = null;
+    private int boardRows = Constants.boardRows;
+    private int boardCols = Constants.boardCols;
+    private List<ClientHandler> clientSockets = new CopyOnWriteArrayList<>();
+    // Used to find the next avaliable player slot
+    // 0 if avaliable, 1 if taken
+    private int[] playerAvaliability;
+    // Token a player needs to resume its slot, 0 if the slot was never taken
+    private long[] sessionTokens;
+    // Latest cursor position of each player that hasn't been sent out yet,
+    // quantized to 0-65535
+    private int[] cursorX;
+    private int[] cursorY;
+    private boolean[] pendingCursors;
+    private boolean hasPendingCursors = false;
+
+    Room(int roomID, int maxPlayers) {
+        this.roomID = roomID;
+        this.playerAvaliability = new int[maxPlayers];
+        this.sessionTokens = new long[maxPlayers];
+        this.cursorX = new int[maxPlayers];
+        this.cursorY = new int[maxPlayers];
+        this.pendingCursors = new boolean[maxPlayers];
+    }
+
+    public int getRoomID() {
+        return roomID;
+    }
+
+    public synchronized void addClientSocket(ClientHandler socket) {
+        clientSockets.add(socket);
+        if (socket.getPLayerID() == -1) {
+            spectatorCount++;
+        } else {
+            playerCount++;
+        }
+    }
+
+    /**
+     * Remove a client socket from the list of active client sockets. Close the
+     * socket once its queued messages are written, mark the player ID as
+     * avaliable and release the tiles the player was drawing. Does nothing if the
+     * client has already been removed. If the last player leaves a match in
+     * progress the spectators are disconnected and the room is given back to the
+     * lobby.
+     *
+     * @param socket Client socket to remove
+     */
+    public void removeClientSocket(ClientHandler socket) {
+        boolean isAbandoned;
+        List<ClientHandler> spectators = null;
+        List<int[]> releasedTiles = null;
+
+        synchronized (this) {
+            if (!clientSockets.remove(socket)) {
+                return;
+            }
+
+            socket.close();
+
+            int playerID = socket.getPLayerID();
+            // Mark player ID as avaliable, unless the player already resumed the slot
+            // on a new connection
+            if (playerID != -1 && !hasPlayer(playerID)) {
+                playerAvaliability[playerID] = 0;
+                clearView(playerID);
+                if (board != null) {
+                    releasedTiles = board.releaseTiles(playerID);
+                }
+                log.info("Player %d has left room %d.", playerID, roomID);
+            }
+
+            if (playerID == -1) {
+                spectatorCount--;
+            } else {
+                playerCount--;
+                log.info("Room %d player count: %d", roomID, playerCount);
+            }
+
+            isAbandoned = gameStarted && playerCount == 0;
+            if (isAbandoned) {
+                // Only spectators are left
+                spectators = new ArrayList<>(clientSockets);
+                reset();
+            }
+        }
+
+        // Sent outside of the lock, nobody is left to tell in an abandoned room
+        if (releasedTiles != null && !isAbandoned) {
+            for (int[] tile : releasedTiles) {
+                sendRelease(tile[0], tile[1], socket.getPLayerID(), tile[2]);
+            }
+        }
+
+        // Lobby is called outside of the lock, it locks the lobby before the room
+        if (isAbandoned) {
+            for (ClientHandler spectator : spectators) {
+                removeClientSocket(spectator);
+            }
+            Lobby.getInstance().recycleRoom(this);
+        }
+    }
+
+    /**
+     * Give a player that lost its connection during the match its slot back. An
+     * old connection that still holds the slot is closed.
+     *
+     * @param socket   The new connection of the player
+     * @param playerID
+     * @param token    The session token the player was given when it joined
+     * @return false if the match isn't in progress or the token doesn't match
+     */
+    public boolean resumePlayer(ClientHandler socket, int playerID, long token) {
+        ClientHandler previous = null;
+
+        synchronized (this) {
+            if (!gameStarted || playerID < 0 || playerID >= sessionTokens.length || sessionTokens[playerID] == 0
+                    || sessionTokens[playerID] != token) {
+                return false;
+            }
+
+            for (ClientHandler clientHandler : clientSockets) {
+                if (clientHandler.getPLayerID() == playerID) {
+                    previous = clientHandler;
+                }
+            }
+
+            // Added before the old connection is removed so the room is never empty
+            playerAvaliability[playerID] = 1;
+            clientSockets.add(socket);
+            playerCount++;
+        }
+
+        if (previous != null) {
+            removeClientSocket(previous);
+        }
+
+        log.info("Player %d resumed in room %d.", playerID, roomID);
+        return true;
+    }
+
+    /**
+     * Remove a client that is moving to another room, without closing its
+     * connection
+     *
+     * @param socket
+     * @param playerID The player ID the client had in this room
+     */
+    public synchronized void detachClientSocket(ClientHandler socket, int playerID) {
+        if (!clientSockets.remove(socket)) {
+            return;
+        }
+
+        if (playerID == -1) {
+            spectatorCount--;
+            return;
+        }
+
+        if (!hasPlayer(playerID)) {
+            playerAvaliability[playerID] = 0;
+            sessionTokens[playerID] = 0;
+            clearView(playerID);
+        }
+
+        playerCount--;
+    }
+
+    /**
+     * Let the next player in the slot see the whole board
+     *
+     * @param playerID
+     */
+    private void clearView(int playerID) {
+        if (interest != null) {
+            interest.clearView(playerID);
+        }
+    }
+
+    private boolean hasPlayer(int playerID) {
+        for (ClientHandler clientHandler : clientSockets) {
+            if (clientHandler.getPLayerID() == playerID) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public synchronized long getSessionToken(int playerID) {
+        if (playerID < 0 || playerID >= sessionTokens.length) {
+            return 0;
+        }
+
+        return sessionTokens[playerID];
+    }
+
+    /**
+     * Get the messages that bring a client's board up to date. If the changes
+     * after the last one the client saw are still in the board's log only those
+     * are sent, otherwise the owner of every tile is sent run length encoded.
+     *
+     * @param lastSequence Sequence number of the last change the client saw, -1
+     *                     if it has never seen the board
+     * @return
+     */
+    public List<String> getSyncMessages(int lastSequence) {
+        ServerBoard board = getBoard();
+        List<String> messages = new ArrayList<>();
+        List<int[]> deltas = lastSequence < 0 ? null : board.getDeltasSince(lastSequence);
+
+        if (deltas != null) {
+            for (int[] delta : deltas) {
+                // Deltas are { sequence, row, col, player id, 1 if captured }
+                String command = delta[4] == 1 ? Constants.captureCommand : Constants.endDrawCommand;
+                messages.add(String.format("%s %d %d %d %d", command, delta[1], delta[2], delta[3], delta[0]));
+            }
+            return messages;
+        }
+
+        int version = board.getVersion();
+        int[] owners = board.getCapturedTiles();
+        String header = String.format("%s %d %d %d", Constants.syncCommand, version, board.getRows(),
+                board.getCols());
+
+        int tile = 0;
+        while (tile < owners.length) {
+            StringBuilder message = new StringBuilder(header).append(' ').append(tile);
+
+            for (int runs = 0; runs < SYNC_RUNS_PER_MESSAGE && tile < owners.length; runs++) {
+                int owner = owners[tile];
+                int length = 0;
+                while (tile < owners.length && owners[tile] == owner && length < MAX_RUN_LENGTH) {
+                    tile++;
+                    length++;
+                }
+                message.append(' ').append(owner).append(' ').append(length);
+            }
+
+            messages.add(message.toString());
+        }
+
+        return messages;
+    }
+
+    public List<ClientHandler> getClientSockets() {
+        return clientSockets;
+    }
+
+    public synchronized int getPlayerCount() {
+        return playerCount;
+    }
+
+    public synchronized int getSpectatorCount() {
+        return spectatorCount;
+    }
+
+    public synchronized void stopAcceptingClients() {
+        gameStarted = true;
+    }
+
+    public boolean isGameStarted() {
+        return gameStarted;
+    }
+
+    /**
+     * Checks if a new player can join this room
+     *
+     * @return
+     */
+    public synchronized boolean isJoinable() {
+        return !gameStarted && playerCount < playerAvaliability.length;
+    }
+
+    /**
+     * Find the next avaliable player slot.
+     *
+     * @return
+     */
+    public synchronized int getAvaliablePlayer() {
+        for (int i = 0; i < playerAvaliability.length; i++) {
+            if (playerAvaliability[i] == 0) {
+                playerAvaliability[i] = 1;
+                // Never 0, that marks a slot without a session
+                sessionTokens[i] = random.nextLong() | 1;
+                log.debug("Found avaliable player slot: %d in room %d.", i, roomID);
+                return i;
+            }
+        }
+
+        log.warn("No avaliable player slots found in room %d.", roomID);
+        return -1;
+    }
+
+    /**
+     * Store the latest cursor position of the player, it replaces any position
+     * that hasn't been sent yet and is sent out on the next cursor flush
+     *
+     * @param playerID
+     * @param x        The position quantized to 0-65535
+     * @param y        The position quantized to 0-65535
+     */
+    public synchronized void updateCursor(int playerID, int x, int y) {
+        if (playerID < 0 || playerID >= pendingCursors.length) {
+            return;
+        }
+
+        cursorX[playerID] = x;
+        cursorY[playerID] = y;
+        pendingCursors[playerID] = true;
+        hasPendingCursors = true;
+    }
+
+    /**
+     * Send the latest cursor positions to every client that can see them, not
+     * including the player's own cursor. Each position is encoded once per
+     * protocol.
+     */
+    public void flushCursors() {
+        byte[][] textCursors = new byte[pendingCursors.length][];
+        byte[][] binaryCursors = new byte[pendingCursors.length][];
+        long[] subscribers = new long[pendingCursors.length];
+        int time = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+        synchronized (this) {
+            if (!hasPendingCursors) {
+                return;
+            }
+
+            for (int i = 0; i < pendingCursors.length; i++) {
+                if (pendingCursors[i]) {
+                    textCursors[i] = InboundMessage.encodeCursor(i, cursorX[i], cursorY[i], time, false);
+                    binaryCursors[i] = InboundMessage.encodeCursor(i, cursorX[i], cursorY[i], time, true);
+                    // Cursors are positions on the board, everyone sees them until the
+                    // match starts
+                    subscribers[i] = interest == null ? -1L
+                            : interest.getSubscribers((int) ((long) cursorY[i] * boardRows / CURSOR_POSITIONS),
+                                    (int) ((long) cursorX[i] * boardCols / CURSOR_POSITIONS));
+                }
+            }
+
+            Arrays.fill(pendingCursors, false);
+            hasPendingCursors = false;
+        }
+
+        long start = System.nanoTime();
+        for (ClientHandler clientHandler : clientSockets) {
+            if (clientHandler.getSocket().isConnected()) {
+                clientHandler.sendCursors(textCursors, binaryCursors, subscribers);
+            }
+        }
+        Metrics.cursorFlush.recordSince(start);
+    }
+
+    /**
+     * Set the size of the board for the next match. Sizes outside of 1 to
+     * Constants.maxBoardSize are clamped, and the size can't change once the
+     * match has started or the board has been built.
+     *
+     * @param rows
+     * @param cols
+     */
+    public synchronized void setBoardSize(int rows, int cols) {
+        if (gameStarted || board != null) {
+            return;
+        }
+
+        boardRows = Math.max(1, Math.min(rows, Constants.maxBoardSize));
+        boardCols = Math.max(1, Math.min(cols, Constants.maxBoardSize));
+    }
+
+    public synchronized int getBoardRows() {
+        return boardRows;
+    }
+
+    public synchronized int getBoardCols() {
+        return boardCols;
+    }
+
+    /**
+     * Tell everyone a tile was released because the player stopped drawing on
+     * it, the player too since its client still shows it drawing
+     *
+     * @param expiredBoard Board the tile was on
+     * @param row
+     * @param col
+     * @param playerID
+     * @param sequence
+     */
+    private void releaseExpiredTile(ServerBoard expiredBoard, int row, int col, int playerID, int sequence) {
+        synchronized (this) {
+            // The lease outlived its match
+            if (board != expiredBoard) {
+                return;
+            }
+        }
+
+        log.info("Released tile %d, %d in room %d, player %d stopped drawing on it.", row, col, roomID, playerID);
+        sendRelease(row, col, playerID, sequence);
+    }
+
+    /**
+     * Tell every client in the room that a tile was released by the server
+     *
+     * @param row
+     * @param col
+     * @param playerID
+     * @param sequence
+     */
+    private void sendRelease(int row, int col, int playerID, int sequence) {
+        OutboundMessage message = new OutboundMessage(
+                String.format("%s %d %d %d %d", Constants.endDrawCommand, row, col, playerID, sequence));
+        for (ClientHandler clientHandler : clientSockets) {
+            clientHandler.sendMessage(message);
+        }
+    }
+
+    /**
+     * Get the board for this room, the board is created when it is first used
+     *
+     * @return
+     */
+    public synchronized ServerBoard getBoard() {
+        if (board == null) {
+            journal = MatchJournal.start(roomID, boardRows, boardCols, playerAvaliability.length);
+            board = new ServerBoard(boardRows, boardCols, playerAvaliability.length, journal);
+            TimingWheel wheel = Server.getTimingWheel();
+            if (wheel != null) {
+                ServerBoard leasedBoard = board;
+                leasedBoard.startLeases(wheel, TILE_LEASE_MILLIS, (row, col, playerID,
+                        sequence) -> releaseExpiredTile(leasedBoard, row, col, playerID, sequence));
+            }
+            interest = new InterestGrid(boardRows, boardCols, playerAvaliability.length);
+        }
+
+        return board;
+    }
+
+    /**
+     * Get the players that can see each part of the board, created with the
+     * board
+     *
+     * @return
+     */
+    public synchronized InterestGrid getInterest() {
+        getBoard();
+        return interest;
+    }
+
+    /**
+     * Clear the room of all existing connections, reset the match state and give
+     * the room back to the lobby so it can host another match.
+     */
+    public void clear() {
+        // Make sure nobody joins while the clients are being removed, removing the
+        // last client resets the room and gives it back to the lobby
+        stopAcceptingClients();
+
+        // Copy to avoid modifying the list while removing clients
+        for (ClientHandler clientHandler : new ArrayList<>(clientSockets)) {
+            removeClientSocket(clientHandler);
+        }
+
+        log.info("Room %d cleared. All existing connections terminated.", roomID);
+    }
+
+    private void reset() {
+        playerCount = 0;
+        gameStarted = false;
+        if (journal != null) {
+            journal.close(board.getPlayerScores());
+            journal = null;
+        }
+        board = null;
+        interest = null;
+        boardRows = Constants.boardRows;
+        boardCols = Constants.boardCols;
+        for (int i = 0; i < playerAvaliability.length; i++) {
+            playerAvaliability[i] = 0;
+        }
+        Arrays.fill(sessionTokens, 0);
+        Arrays.fill(pendingCursors, false);
+        hasPendingCursors = false;
+    }
+}
@@ -1,9 +1,9 @@
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TCP Server used to accept connections when hosting a game. .
@@ -11,32 +11,67 @@ import java.util.TimerTask;
 
 public class Server {
     private static final int PORT = 3000;
+    // Pass one of these as the first argument to run the selector based server
+    // or to run client threads on virtual threads
+    private static final String NIO_MODE = "nio";
+    private static final String VIRTUAL_THREAD_MODE = "virtual";
+    private static final Log log = Log.get(Log.Category.SERVER);
+    private static final Log connectionLog = Log.get(Log.Category.CONNECTION);
+    // Resolution of the heartbeat and tile lease timeouts, one turn of the wheel
+    // is a little under a minute
+    private static final long WHEEL_TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 512;
     private static ServerSocket serverSocket = null;
-    private static int playerCount = 0;
-    private static boolean gameStarted = false;
-    private static List<ClientHandler> clientSockets = new ArrayList<>();
-    // Used to find the next avaliable player slot
-    // 0 if avaliable, 1 if taken
-    private static int[] playerAvaliability = { 0, 0, 0, 0 };
+    // Runs the client handlers and their writers
+    private static ExecutorService clientExecutor = null;
+    // Runs the timing wheel and the cursor flush
+    private static ScheduledExecutorService scheduler = null;
+    // Heartbeats of every connection and leases of the tiles being drawn
+    private static TimingWheel timingWheel = null;
 
     public static void main(String[] args) throws IOException {
         serverSocket = null;
+        String mode = args.length > 0 ? args[0] : "";
+
+        if (mode.equals(VIRTUAL_THREAD_MODE)) {
+            clientExecutor = createVirtualThreadExecutor();
+        } else {
+            clientExecutor = Executors.newCachedThreadPool();
+        }
+
+        scheduler = Executors.newScheduledThreadPool(2);
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown));
+        Metrics.start(scheduler);
+
+        if (mode.equals(NIO_MODE)) {
+            startFaultTolerance();
+            startCursorFlush();
+            new NioServer().start(PORT);
+            return;
+        }
+
         try {
             // Create the server socket
             serverSocket = new ServerSocket(PORT);
-            System.out.println("Server listening on port " + PORT);
+            log.info("Server listening on port %d", PORT);
 
             // Accept connections from clients and handle them
             startFaultTolerance();
+            startCursorFlush();
 
-            while (!gameStarted) {
-                System.out.println(playerCount + " players connected");
+            // Rooms are recycled when their match ends so the server keeps accepting
+            // clients until it is shut down
+            while (!serverSocket.isClosed()) {
                 Socket newSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(newSocket);
-                Server.addClientSocket(clientHandler);
+                Room room = Lobby.getInstance().findRoom();
+                ClientHandler clientHandler = new ClientHandler(newSocket, room);
+                room.addClientSocket(clientHandler);
+                clientHandler.startHeartbeat(timingWheel);
+                Metrics.countConnectionAccepted();
+                connectionLog.info("%d players connected to room %d", room.getPlayerCount(), room.getRoomID());
 
                 // threads for the server to handle multiple clients simultaneously.
-                new Thread(clientHandler).start();
+                clientExecutor.execute(clientHandler);
             }
         } catch (IOException e) {
             // Close the server socket
@@ -51,125 +86,101 @@ public class Server {
     }
 
     /**
-     * Clear the server of all existing connections and close the server socket.
-     * 
-     * @throws IOException
+     * Creates an executor that starts a virtual thread per task. Virtual threads
+     * need Java 21, on older versions a thread pool is used instead.
+     *
+     * @return
      */
-    public static void clear() throws IOException {
-        if (!serverSocket.isClosed()) {
-            serverSocket.close();
-        }
-
-        for (ClientHandler clientHandler : clientSockets) {
-            removeClientSocket(clientHandler);
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            // Looked up at runtime so the server still compiles on older versions
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not supported by this Java version, using a thread pool.");
+            return Executors.newCachedThreadPool();
         }
-
-        clientSockets.clear();
-        System.out.println("Server cleared. All existing connections terminated.");
     }
 
     /**
-     * Start the fault tolerance for the server. This includes a heartbeat timer
-     * that checks the status of each client every 5 seconds to see if they're still
-     * running.
+     * Run a task for a client, like its handler or its writer
+     *
+     * @param task
      */
-    private static void startFaultTolerance() {
-        Timer heartbeatTimer = new Timer();
-        heartbeatTimer.schedule(new HeartbeatTask(), 0, 5000);
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> { // allows program to shut down gracefully after
-                                                                // termination
-            heartbeatTimer.cancel();
-        }));
+    public static void execute(Runnable task) {
+        clientExecutor.execute(task);
     }
 
     /**
-     * Timer task that runs every 5 seconds to check the status of each client.
-     * Removes the client from the list of active client sockets if they are not
-     * responsive.
+     * Get the timing wheel the connection and tile timeouts are scheduled on
+     *
+     * @return The wheel, or null if the server isn't running, like in the
+     *         benchmarks
      */
-    private static class HeartbeatTask extends TimerTask {
-        @Override
-        public void run() {
-            // Add list to avoid concurrent modification exception
-            List<ClientHandler> clientHandlersToRemove = new ArrayList<>();
-
-            for (ClientHandler clientHandler : clientSockets) {
-                if (!clientHandler.getClientAlive()) {// added client status to client handler
-                    System.out.println("Client " + clientHandler + " is not responding");
-                    clientHandlersToRemove.add(clientHandler);
-                }
-            }
-
-            // Remove all clients that are not responding
-            for (ClientHandler clientHandler : clientHandlersToRemove) {
-                removeClientSocket(clientHandler);
-            }
-        }
-    }
-
-    public synchronized static void addClientSocket(ClientHandler socket) {
-        clientSockets.add(socket);
-        playerCount++;
+    public static TimingWheel getTimingWheel() {
+        return timingWheel;
     }
 
     /**
-     * Remove a client socket from the list of active client sockets. Close the
-     * socket and mark the player ID as avaliable.
-     * 
-     * @param socket Client socket to remove
+     * Stop the scheduled tasks, close the server socket and every client
+     * connection, and stop the client threads. Runs when the server shuts down.
      */
-    public synchronized static void removeClientSocket(ClientHandler socket) {
-        try {
-            socket.getSocket().close();
-        } catch (IOException e) {
-            throw new RuntimeException("Error closing socket", e);
+    private static void shutdown() {
+        scheduler.shutdownNow();
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.error("Error closing server socket: %s", e.getMessage());
+            }
         }
 
-        int playerID = socket.getPLayerID();
-        // Mark player ID as avaliable
-        if (playerID != -1) {
-            playerAvaliability[playerID] = 0;
-            System.out.println("Player " + playerID + " has left the game.");
-
+        for (Room room : Lobby.getInstance().getRooms()) {
+            room.clear();
         }
 
-        playerCount--;
-        clientSockets.remove(socket);
-        System.out.println("Player count: " + playerCount);
-    }
+        clientExecutor.shutdownNow();
+        try {
+            clientExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-    public static List<ClientHandler> getClientSockets() {
-        return clientSockets;
-    }
+        // Write the end of the matches that were just cleared
+        MatchJournal.flushAll();
 
-    public static boolean isPlayersLeft() {
-        return playerCount != 0;
+        log.info("Server shut down.");
+        // Shutdown hooks run in any order, make sure the log is printed
+        Log.flush();
     }
 
-    public synchronized static int getPlayerCount() {
-        return playerCount;
-    }
-
-    public static void stopAcceptingClients() {
-        gameStarted = true;
+    /**
+     * Start the fault tolerance for the server. Every connection is pinged and
+     * dropped once it stops answering, and tiles players stop drawing on are
+     * released, all on one timing wheel.
+     */
+    private static void startFaultTolerance() {
+        timingWheel = new TimingWheel(WHEEL_TICK_MILLIS, WHEEL_SLOTS);
+        scheduler.scheduleAtFixedRate(timingWheel::advance, WHEEL_TICK_MILLIS, WHEEL_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Find the next avaliable player slot.
-     * 
-     * @return
+     * Start sending out the latest cursor positions of every room
+     * Constants.cursorTickRate times a second. Cursor messages are coalesced
+     * between ticks so a fast moving mouse doesn't flood the other clients.
      */
-    public synchronized static int getAvaliablePlayer() {
-        for (int i = 0; i < playerAvaliability.length; i++) {
-            if (playerAvaliability[i] == 0) {
-                playerAvaliability[i] = 1;
-                System.out.println("Found avaliable player slot: " + i + ".");
-                return i;
+    private static void startCursorFlush() {
+        long period = Math.max(1, 1000 / Constants.cursorTickRate);
+        scheduler.scheduleAtFixedRate(new CursorFlushTask(), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static class CursorFlushTask implements Runnable {
+        @Override
+        public void run() {
+            for (Room room : Lobby.getInstance().getRooms()) {
+                room.flushCursors();
             }
         }
-
-        System.out.println("No avaliable player slots found.");
-        return -1;
     }
 }
@@ -1,145 +1,576 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Board state of a room. Tiles are stored in a flat atomic array and taking
+ * a free tile to draw on is a compare and set on that tile, so players drawing
+ * on different tiles never wait on each other. A tile is either free (-1),
+ * being drawn by a player (the player ID) or captured by a player (the player
+ * ID plus the number of player slots). Only the player drawing a tile can
+ * capture or release it, which is done under the lock of the change log.
+ *
+ * The server decides captures itself: the stroke points of each player are
+ * marked in a coverage bitmap of the tile it is drawing, and a capture is
+ * refused until enough of the tile has been drawn over.
+ *
+ * Every capture and release is given a sequence number and kept in a log of
+ * the latest changes, so a client that reconnects only needs the changes after
+ * the last one it saw. The sequence number of the latest change is the version
+ * of the board.
+ *
+ * If the board has a journal, every stroke, capture and release is written to
+ * it in the order it happened, so the match can be replayed later.
+ *
+ * With leases started, a tile taken to draw on is released again once the
+ * player hasn't drawn anything for the length of the lease, so a player that
+ * went silent can't keep a tile from everyone else.
+ */
 class ServerBoard {
-    private static ServerBoard instance;
-    private int[][] board;
-    private int captureCount;
-    private int[] playerScores;
+    private static final int FREE = -1;
+    // Number of changes kept in the log, older changes need a full snapshot
+    private static final int DELTA_LOG_SIZE = 4096;
+
+    private AtomicIntegerArray board;
+    private int rows;
+    private int cols;
+    private AtomicInteger captureCount;
+    private AtomicIntegerArray playerScores;
+    // Added to the player ID to differentiate between drawing and captured tiles
+    private int capturedOffset;
+
+    // Ring buffer of the latest changes, indexed by sequence number, guarded by
+    // the board lock
+    private int version = 0;
+    private int[] deltaTiles = new int[DELTA_LOG_SIZE];
+    private int[] deltaPlayers = new int[DELTA_LOG_SIZE];
+    private boolean[] deltaCaptures = new boolean[DELTA_LOG_SIZE];
+    // Changes up to this one aren't in the log, set when the board is restored
+    private int firstDelta = 0;
+    // Null if the match isn't journaled
+    private MatchJournal journal;
+
+    // Coverage of the tile each player is drawing on, a player covers one tile
+    // at a time. Guarded by the coverage of the player.
+    private TileCoverage[] coverage;
+    private int[] coverageTiles;
+
+    // Null until leases are started
+    private TimingWheel wheel = null;
+    private long leaseMillis;
+    private LeaseListener leaseListener;
+    // System.nanoTime() of the last draw of each player
+    private AtomicLongArray lastDrawTimes;
+
+    /**
+     * Told about tiles released because their lease expired
+     */
+    interface LeaseListener {
+        /**
+         * Called on the thread advancing the timing wheel
+         *
+         * @param row
+         * @param col
+         * @param playerID The player that was drawing the tile
+         * @param sequence Sequence number of the release
+         */
+        void onLeaseExpired(int row, int col, int playerID, int sequence);
+    }
+
+    ServerBoard(int rows, int cols, int playerSlots) {
+        this(rows, cols, playerSlots, null);
+    }
 
-    ServerBoard() {
-        board = new int[Constants.boardRows][Constants.boardCols];
+    ServerBoard(int rows, int cols, int playerSlots, MatchJournal journal) {
+        this.journal = journal;
+        this.rows = rows;
+        this.cols = cols;
+        board = new AtomicIntegerArray(rows * cols);
         // set all tiles to -1 to indicate that they are free
-        for (int i = 0; i < Constants.boardRows; i++) {
-            for (int j = 0; j < Constants.boardCols; j++) {
-                board[i][j] = -1;
-            }
+        for (int i = 0; i < board.length(); i++) {
+            board.set(i, FREE);
         }
 
-        captureCount = 0;
-        playerScores = new int[Server.getPlayerCount()];
-    }
+        captureCount = new AtomicInteger();
+        playerScores = new AtomicIntegerArray(playerSlots);
+        capturedOffset = playerSlots;
 
-    public static ServerBoard getInstance() {
-        if (instance == null) {
-            instance = new ServerBoard();
+        int tileSize = TileCoverage.tileSize(rows, cols);
+        coverage = new TileCoverage[playerSlots];
+        coverageTiles = new int[playerSlots];
+        for (int i = 0; i < playerSlots; i++) {
+            coverage[i] = new TileCoverage(tileSize);
+            coverageTiles[i] = FREE;
         }
+    }
 
-        return instance;
+    /**
+     * Release the tiles players stop drawing on, checked on the timing wheel.
+     * Must be called before the board is used.
+     *
+     * @param wheel
+     * @param leaseMillis Time without drawing before a tile is released
+     * @param listener
+     */
+    void startLeases(TimingWheel wheel, long leaseMillis, LeaseListener listener) {
+        this.leaseMillis = leaseMillis;
+        this.leaseListener = listener;
+        lastDrawTimes = new AtomicLongArray(coverage.length);
+        this.wheel = wheel;
     }
 
     /**
-     * Captures the tile for the player
-     * 
+     * Index of the tile in the flat board array
+     *
      * @param row
      * @param col
-     * @param playerID
+     * @return
      */
-    private void captureTile(int row, int col, int playerID) {
-        // 4 is added to differentiate between drawing and captured tiles
-        board[row][col] = playerID + 4;
+    private int indexOf(int row, int col) {
+        return row * cols + col;
     }
 
     /**
-     * Draws the tile for the player
-     * 
+     * Checks if the tile is on the board
+     *
      * @param row
      * @param col
-     * @param playerID
+     * @return
      */
-    private void drawTile(int row, int col, int playerID) {
-        board[row][col] = playerID;
+    private boolean isOnBoard(int row, int col) {
+        return row >= 0 && row < rows && col >= 0 && col < cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
     }
 
     /**
-     * Checks if the tile is free
-     * 
+     * Releases the tile for the player
+     *
      * @param row
      * @param col
-     * @return
+     * @param playerID
+     * @return The sequence number of the release, or -1 if the tile wasn't being
+     *         drawn by the player
      */
-    private boolean isTileFree(int row, int col) {
-        return board[row][col] == -1;
+    public int releaseTile(int row, int col, int playerID) {
+        // Any other ID would match a captured tile
+        if (!isOnBoard(row, col) || playerID < 0 || playerID >= capturedOffset) {
+            return -1;
+        }
+
+        int index = indexOf(row, col);
+
+        // Only release the tile if it is being drawn by the player
+        if (board.get(index) != playerID) {
+            return -1;
+        }
+
+        int sequence = changeTile(index, playerID, false);
+        if (sequence != -1) {
+            clearCoverage(index, playerID);
+        }
+        return sequence;
     }
 
     /**
-     * Checks if the tile is being drawn by the player
-     * 
+     * Release every tile the player is drawing, when it leaves the match
+     *
+     * @param playerID
+     * @return { row, col, sequence } of each tile released
+     */
+    public List<int[]> releaseTiles(int playerID) {
+        List<int[]> released = new ArrayList<>();
+        if (playerID < 0 || playerID >= capturedOffset) {
+            return released;
+        }
+
+        for (int index = 0; index < board.length(); index++) {
+            if (board.get(index) != playerID) {
+                continue;
+            }
+
+            int sequence = changeTile(index, playerID, false);
+            if (sequence != -1) {
+                clearCoverage(index, playerID);
+                released.add(new int[] { index / cols, index % cols, sequence });
+            }
+        }
+
+        return released;
+    }
+
+    /**
+     * Attempts to draw the tile for the player, returns true if the tile was drawn
+     * by the player and false otherwise
+     *
      * @param row
      * @param col
      * @param playerID
      * @return
      */
-    private boolean isTileBeingDrawnBy(int row, int col, int playerID) {
-        return board[row][col] == playerID || isTileFree(row, col);
+    public boolean attemptDrawTile(int row, int col, int playerID) {
+        // Any other ID would be stored as a captured tile
+        if (!isOnBoard(row, col) || playerID < 0 || playerID >= capturedOffset) {
+            return false;
+        }
+
+        int index = indexOf(row, col);
+
+        while (true) {
+            int tile = board.get(index);
+
+            if (tile == playerID) {
+                renewLease(playerID);
+                return true;
+            }
+
+            if (tile != FREE) {
+                return false;
+            }
+
+            if (board.compareAndSet(index, FREE, playerID)) {
+                if (wheel != null) {
+                    renewLease(playerID);
+                    wheel.schedule(() -> checkLease(index, playerID), leaseMillis);
+                }
+                return true;
+            }
+            // Another player changed the tile in between, check it again
+            Metrics.boardRetries.increment();
+        }
+    }
+
+    private void renewLease(int playerID) {
+        if (wheel != null && playerID >= 0 && playerID < capturedOffset) {
+            lastDrawTimes.lazySet(playerID, System.nanoTime());
+        }
+    }
+
+    /**
+     * Release the tile if the player is still drawing it but hasn't drawn
+     * anything for the length of the lease, otherwise check again when the
+     * lease would expire
+     *
+     * @param index
+     * @param playerID
+     */
+    private void checkLease(int index, int playerID) {
+        if (board.get(index) != playerID) {
+            return;
+        }
+
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastDrawTimes.get(playerID));
+        if (idleMillis < leaseMillis) {
+            wheel.schedule(() -> checkLease(index, playerID), leaseMillis - idleMillis);
+            return;
+        }
+
+        int sequence = changeTile(index, playerID, false);
+        if (sequence != -1) {
+            clearCoverage(index, playerID);
+            Metrics.leasesExpired.increment();
+            leaseListener.onLeaseExpired(index / cols, index % cols, playerID, sequence);
+        }
     }
 
     /**
-     * Releases the tile for the player
-     * 
+     * Mark the stroke points of the player on the tile it is drawing. Points on
+     * another tile than the last ones start its coverage over.
+     *
      * @param row
      * @param col
      * @param playerID
+     * @param points     x, y pairs relative to the tile
+     * @param pointCount Number of pairs
+     */
+    public void addCoverage(int row, int col, int playerID, int[] points, int pointCount) {
+        if (!isOnBoard(row, col) || playerID < 0 || playerID >= coverage.length) {
+            return;
+        }
+
+        int index = indexOf(row, col);
+        TileCoverage tileCoverage = coverage[playerID];
+
+        synchronized (tileCoverage) {
+            if (coverageTiles[playerID] != index) {
+                tileCoverage.reset();
+                coverageTiles[playerID] = index;
+            }
+
+            for (int i = 0; i < pointCount; i++) {
+                tileCoverage.addPoint(points[2 * i], points[2 * i + 1]);
+            }
+
+            if (journal != null) {
+                journal.recordStroke(row, col, playerID, points, pointCount);
+            }
+        }
+    }
+
+    /**
+     * Checks if the player has drawn over enough of the tile to capture it
+     *
+     * @param index
+     * @param playerID
      * @return
      */
-    public synchronized boolean releaseTile(int row, int col, int playerID) {
-        // Only release the tile if it is being drawn by the player
-        if (isTileBeingDrawnBy(row, col, playerID)) {
-            board[row][col] = -1;
-            return true;
+    private boolean isCovered(int index, int playerID) {
+        if (playerID < 0 || playerID >= coverage.length) {
+            return false;
         }
 
-        return false;
+        TileCoverage tileCoverage = coverage[playerID];
+        synchronized (tileCoverage) {
+            return coverageTiles[playerID] == index && tileCoverage.isCaptured();
+        }
+    }
+
+    private void clearCoverage(int index, int playerID) {
+        TileCoverage tileCoverage = coverage[playerID];
+        synchronized (tileCoverage) {
+            if (coverageTiles[playerID] == index) {
+                tileCoverage.reset();
+                coverageTiles[playerID] = FREE;
+            }
+        }
     }
 
     /**
-     * Attempts to draw the tile for the player, returns true if the tile was drawn
-     * by the player and false otherwise
-     * 
+     * Attempts to capture the tile for the player. The player must be drawing
+     * the tile and have drawn over enough of it.
+     *
      * @param row
      * @param col
      * @param playerID
+     * @return The sequence number of the capture, or -1 if the tile wasn't
+     *         captured
+     */
+    public int attemptCaptureTile(int row, int col, int playerID) {
+        if (!isOnBoard(row, col)) {
+            return -1;
+        }
+
+        int index = indexOf(row, col);
+
+        if (board.get(index) != playerID || !isCovered(index, playerID)) {
+            Metrics.capturesRefused.increment();
+            return -1;
+        }
+
+        int sequence = changeTile(index, playerID, true);
+        if (sequence != -1) {
+            clearCoverage(index, playerID);
+        }
+        return sequence;
+    }
+
+    /**
+     * Checks if all tiles have been captured
+     *
      * @return
      */
-    public synchronized boolean attemptDrawTile(int row, int col, int playerID) {
-        if (isTileBeingDrawnBy(row, col, playerID)) {
-            drawTile(row, col, playerID);
-            return true;
+    public boolean allTilesCaptured() {
+        return captureCount.get() == board.length();
+    }
+
+    /**
+     * Capture or release a tile the player is drawing, and add the change to
+     * the log and the journal. The tile only changes after it is journaled, so
+     * nobody can draw a released tile before its release is written.
+     *
+     * @param index
+     * @param playerID
+     * @param isCapture
+     * @return The sequence number of the change, or -1 if the player isn't
+     *         drawing the tile
+     */
+    private int changeTile(int index, int playerID, boolean isCapture) {
+        long start = System.nanoTime();
+
+        synchronized (this) {
+            // The only lock taken when changing the board, time how long it took
+            Metrics.boardLogWait.recordSince(start);
+
+            // Checked again, another connection of the player could have changed it
+            if (board.get(index) != playerID) {
+                return -1;
+            }
+
+            version++;
+            logDelta(version, index, playerID, isCapture);
+            if (journal != null) {
+                journal.recordChange(version, index / cols, index % cols, playerID, isCapture);
+            }
+
+            if (isCapture) {
+                board.set(index, playerID + capturedOffset);
+                captureCount.incrementAndGet();
+                playerScores.incrementAndGet(playerID);
+            } else {
+                board.set(index, FREE);
+            }
+            return version;
         }
+    }
 
-        return false;
+    private void logDelta(int sequence, int index, int playerID, boolean isCapture) {
+        int slot = sequence % DELTA_LOG_SIZE;
+        deltaTiles[slot] = index;
+        deltaPlayers[slot] = playerID;
+        deltaCaptures[slot] = isCapture;
     }
 
     /**
-     * Attempts to capture the tile for the player, returns true if the tile was
-     * captured by the player and false otherwise
-     * 
+     * Apply a capture or release read from a journal, without checking it
+     *
+     * @param sequence
      * @param row
      * @param col
      * @param playerID
-     * @return
+     * @param isCapture
      */
-    public synchronized boolean attemptCaptureTile(int row, int col, int playerID) {
-        if (isTileBeingDrawnBy(row, col, playerID)) {
-            captureTile(row, col, playerID);
-            captureCount++;
-            playerScores[playerID]++;
-            return true;
+    synchronized void replayChange(int sequence, int row, int col, int playerID, boolean isCapture) {
+        if (!isOnBoard(row, col) || playerID < 0 || playerID >= capturedOffset) {
+            return;
+        }
+
+        int index = indexOf(row, col);
+        int tile = board.get(index);
+        if (tile >= capturedOffset) {
+            captureCount.decrementAndGet();
+            playerScores.decrementAndGet(tile - capturedOffset);
         }
 
-        return false;
+        if (isCapture) {
+            board.set(index, playerID + capturedOffset);
+            captureCount.incrementAndGet();
+            playerScores.incrementAndGet(playerID);
+        } else {
+            board.set(index, FREE);
+        }
+        clearCoverage(index, playerID);
+
+        // A journal with gaps still keeps the log in order
+        if (sequence != version + 1) {
+            firstDelta = sequence - 1;
+        }
+        version = sequence;
+        logDelta(sequence, index, playerID, isCapture);
     }
 
     /**
-     * Checks if all tiles have been captured
-     * 
+     * Get every tile as stored, free, drawing or captured
+     *
      * @return
      */
-    public synchronized boolean allTilesCaptured() {
-        if (captureCount == Constants.boardCols * Constants.boardRows) {
-            return true;
+    synchronized int[] getTiles() {
+        int[] tiles = new int[board.length()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = board.get(i);
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Replace the whole board with a copy taken by getTiles(). The changes
+     * before the version are no longer in the log.
+     *
+     * @param tiles
+     * @param version
+     */
+    synchronized void restore(int[] tiles, int version) {
+        captureCount.set(0);
+        for (int i = 0; i < playerScores.length(); i++) {
+            playerScores.set(i, 0);
+        }
+
+        for (int i = 0; i < tiles.length; i++) {
+            board.set(i, tiles[i]);
+            if (tiles[i] >= capturedOffset) {
+                captureCount.incrementAndGet();
+                playerScores.incrementAndGet(tiles[i] - capturedOffset);
+            }
+        }
+
+        this.version = version;
+        firstDelta = version;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the changes made after the given sequence number
+     *
+     * @param sequence The last change the client has seen
+     * @return The changes as { sequence, row, col, player id, 1 if captured }, or
+     *         null if they are no longer in the log
+     */
+    public synchronized List<int[]> getDeltasSince(int sequence) {
+        if (sequence < firstDelta || sequence > version || version - sequence > DELTA_LOG_SIZE) {
+            return null;
+        }
+
+        List<int[]> deltas = new ArrayList<>(version - sequence);
+        for (int i = sequence + 1; i <= version; i++) {
+            int slot = i % DELTA_LOG_SIZE;
+            deltas.add(new int[] { i, deltaTiles[slot] / cols, deltaTiles[slot] % cols, deltaPlayers[slot],
+                    deltaCaptures[slot] ? 1 : 0 });
+        }
+
+        return deltas;
+    }
+
+    /**
+     * Get the player that captured each tile. Get the version first, the
+     * snapshot includes at least every change up to it.
+     *
+     * @return The player ID of each tile in row order, -1 if it isn't captured
+     */
+    public int[] getCapturedTiles() {
+        int[] owners = new int[board.length()];
+        for (int i = 0; i < owners.length; i++) {
+            int tile = board.get(i);
+            owners[i] = tile >= capturedOffset ? tile - capturedOffset : FREE;
+        }
+
+        return owners;
+    }
+
+    /**
+     * Get the player that captured the tile
+     *
+     * @param row
+     * @param col
+     * @return The player ID, or -1 if the tile isn't captured or isn't on the
+     *         board
+     */
+    public int getCapturedBy(int row, int col) {
+        if (!isOnBoard(row, col)) {
+            return FREE;
         }
-        return false;
+
+        int tile = board.get(indexOf(row, col));
+        return tile >= capturedOffset ? tile - capturedOffset : FREE;
     }
 
     public int[] getPlayerScores() {
-        return playerScores;
+        int[] scores = new int[playerScores.length()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = playerScores.get(i);
+        }
+
+        return scores;
     }
 }
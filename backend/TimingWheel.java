@@ -0,0 +1,140 @@
+/**
+ * Hashed timing wheel for the timeouts of every connection and tile. The
+ * wheel is a ring of buckets, one per tick, and a timeout is added to the
+ * bucket of the tick it expires on, counting the turns of the wheel it has to
+ * wait for timeouts further away than one turn. Scheduling and cancelling are
+ * a linked list insert or remove, and every tick only looks at one bucket, so
+ * thousands of connections with their own timeouts cost about the same as a
+ * single timer.
+ *
+ * Timeouts fire up to a tick late, never early. Tasks run on the thread
+ * advancing the wheel and must be quick, like queueing a message.
+ */
+class TimingWheel {
+    private static final Log log = Log.get(Log.Category.SERVER);
+
+    /**
+     * A scheduled task, can be cancelled until it runs
+     */
+    class Timeout {
+        private Runnable task;
+        // Turns of the wheel left before it expires
+        private long rounds;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancel the timeout, does nothing if it has already run
+         */
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                if (bucket != -1) {
+                    remove(this);
+                }
+            }
+        }
+    }
+
+    private long tickNanos;
+    private long startNanos = System.nanoTime();
+    private Timeout[] buckets;
+    private int mask;
+    // Ticks processed so far, guarded by the wheel
+    private long tick = 0;
+
+    /**
+     * @param tickMillis Time between ticks, the resolution of the timeouts
+     * @param slots      Buckets in the wheel, rounded up to a power of two.
+     *                   Timeouts up to tickMillis * slots away are found in
+     *                   the first turn.
+     */
+    TimingWheel(long tickMillis, int slots) {
+        tickNanos = tickMillis * 1_000_000;
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        buckets = new Timeout[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Run the task once the delay has passed
+     *
+     * @param task
+     * @param delayMillis
+     * @return The timeout, to cancel it
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        // Rounded up, the tick being processed next may be about to run
+        long ticks = Math.max(1, (delayMillis * 1_000_000 + tickNanos - 1) / tickNanos);
+
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = ticks / buckets.length;
+        timeout.bucket = (int) ((tick + ticks) & mask);
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        return timeout;
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Process every tick that has passed and run the expired tasks. Called
+     * about once per tick, ticks missed when it runs late are caught up.
+     */
+    public void advance() {
+        Timeout expired = null;
+
+        synchronized (this) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+
+            while (tick <= now) {
+                Timeout timeout = buckets[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds == 0) {
+                        remove(timeout);
+                        // Reuses the links, the timeout is out of the wheel
+                        timeout.next = expired;
+                        expired = timeout;
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+        }
+
+        // Run outside of the lock, tasks schedule their next timeout
+        while (expired != null) {
+            Timeout next = expired.next;
+            expired.next = null;
+            try {
+                expired.task.run();
+            } catch (RuntimeException e) {
+                log.error("Error running timeout: %s", e.getMessage(), e);
+            }
+            expired = next;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micro benchmarks for the server hot paths: message parsing, board updates
+ * under contention, broadcast fan-out and the binary protocol. Each benchmark
+ * is warmed up and then measured for a few iterations, and reports its
+ * throughput and the bytes allocated per operation.
+ *
+ * Compile and run it from the project root with the server sources:
+ *
+ * <pre>
+ * javac -d benchmark/out benchmark/*.java backend/*.java shared/*.java
+ * java -cp benchmark/out Benchmark [benchmark name filter]
+ * </pre>
+ */
+public class Benchmark {
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 3;
+    private static final long ITERATION_MILLIS = 1000;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final int[] FAN_OUT_CLIENTS = { 1, 4, 16, 64 };
+    private static final int BOARD_SIZE = Constants.maxBoardSize;
+
+    private static final String DRAW_MESSAGE = "draw 1 2 30 40 0 0";
+    // Followed by the player ID
+    private static final String STROKE_POINTS = "stroke 1 2 11 12 13 14 15 16 17 18 19 20 21 22 23 24 25 26 "
+            + "27 28 29 30 31 32 33 34 35 36 37 38 39 40 41 42";
+    private static final String STROKE_MESSAGE = STROKE_POINTS + " 0";
+    private static final String CURSOR_MESSAGE = "cursor 0.512345 0.334455 0";
+    private static final String END_DRAW_MESSAGE = "endDraw 1 2 0";
+
+    private static PrintStream results = System.out;
+    private static String filter = "";
+    // Results of the operations are stored here so the JIT can't remove the work
+    private static volatile Object sink;
+
+    /**
+     * A single operation of a benchmark
+     */
+    private interface Operation {
+        Object run(int thread) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            filter = args[0];
+        }
+
+        // Keep anything the server logs out of the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // Millions of strokes a second would fill the disk, journal only when asked
+        if (System.getProperty("journal.dir") == null) {
+            System.setProperty("journal.dir", "");
+        }
+
+        results.printf("%-40s %8s %16s %14s%n", "Benchmark", "Threads", "Score (ops/s)", "Alloc (B/op)");
+
+        benchmarkParsing();
+        benchmarkBoard();
+        benchmarkFanOut();
+        benchmarkProtocol();
+    }
+
+    /**
+     * ClientHandler.handleMessage for each kind of message as a text line and a
+     * binary frame, in a room without any other clients so nothing is broadcast
+     */
+    private static void benchmarkParsing() throws Exception {
+        Room room = new Room(0, Constants.maxPlayers);
+        room.setBoardSize(BOARD_SIZE, BOARD_SIZE);
+        ClientHandler handler = new ClientHandler(new Socket(), room);
+        // Drawing is only handled once the match has started
+        room.stopAcceptingClients();
+
+        for (String message : new String[] { DRAW_MESSAGE, STROKE_MESSAGE, CURSOR_MESSAGE, END_DRAW_MESSAGE }) {
+            String command = message.substring(0, message.indexOf(' '));
+            byte[] line = message.getBytes(StandardCharsets.UTF_8);
+            byte[] frame = BinaryProtocol.encode(message);
+
+            run("parse.text." + command, 1, thread -> handle(handler, line, 0, line.length, false));
+            run("parse.binary." + command, 1, thread -> handle(handler, frame, BinaryProtocol.headerSize,
+                    frame.length - BinaryProtocol.headerSize, true));
+        }
+    }
+
+    /**
+     * ServerBoard draw, release and capture on random tiles from 1 to 64 threads.
+     * Captures cover the tile with a stroke first.
+     */
+    private static void benchmarkBoard() throws Exception {
+        for (int threads : THREAD_COUNTS) {
+            ServerBoard board = new ServerBoard(BOARD_SIZE, BOARD_SIZE, Constants.maxPlayers);
+
+            run("board.drawAndRelease", threads, thread -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int row = random.nextInt(BOARD_SIZE);
+                int col = random.nextInt(BOARD_SIZE);
+                int playerID = thread % Constants.maxPlayers;
+
+                if (board.attemptDrawTile(row, col, playerID)) {
+                    return board.releaseTile(row, col, playerID) != -1;
+                }
+                return false;
+            });
+        }
+
+        // Back and forth across the tile, enough to capture it
+        int tileSize = TileCoverage.tileSize(BOARD_SIZE, BOARD_SIZE);
+        int[] stroke = new int[2 * Constants.strokeBatchSize];
+        for (int i = 0; i < Constants.strokeBatchSize; i++) {
+            stroke[2 * i] = (i + 1) / 2 % 2 == 0 ? 0 : tileSize - 1;
+            stroke[2 * i + 1] = i / 2 * tileSize / (Constants.strokeBatchSize / 2);
+        }
+
+        for (int threads : THREAD_COUNTS) {
+            ServerBoard[] board = { new ServerBoard(BOARD_SIZE, BOARD_SIZE, Constants.maxPlayers) };
+
+            run("board.capture", threads, thread -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ServerBoard current = board[0];
+                int row = random.nextInt(BOARD_SIZE);
+                int col = random.nextInt(BOARD_SIZE);
+                int playerID = thread % Constants.maxPlayers;
+
+                boolean isCaptured = false;
+                if (current.attemptDrawTile(row, col, playerID)) {
+                    current.addCoverage(row, col, playerID, stroke, Constants.strokeBatchSize);
+                    isCaptured = current.attemptCaptureTile(row, col, playerID) != -1;
+                    if (!isCaptured) {
+                        // Another thread of the same player started over on another tile
+                        current.releaseTile(row, col, playerID);
+                    }
+                }
+
+                // Start over once every tile is taken so captures keep succeeding
+                if (current.allTilesCaptured()) {
+                    board[0] = new ServerBoard(BOARD_SIZE, BOARD_SIZE, Constants.maxPlayers);
+                }
+                return isCaptured;
+            });
+        }
+    }
+
+    /**
+     * A stroke message broadcast to every other client in the room. The clients
+     * are connected loopback sockets that are never written to, only their
+     * outbound queues are filled and emptied.
+     */
+    private static void benchmarkFanOut() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0)) {
+            for (int clients : FAN_OUT_CLIENTS) {
+                String name = "fanOut.stroke." + clients + "Clients";
+                if (!isSelected(name)) {
+                    continue;
+                }
+
+                // A slot for every client and the sender, which joins last so the
+                // clients receiving the stroke all fit in the interest masks
+                Room room = new Room(0, clients + 1);
+                room.setBoardSize(BOARD_SIZE, BOARD_SIZE);
+                List<Socket> sockets = new ArrayList<>();
+
+                for (int i = 0; i < clients; i++) {
+                    room.addClientSocket(new ClientHandler(connect(listener, sockets), room));
+                }
+                ClientHandler sender = new ClientHandler(connect(listener, sockets), room);
+                room.addClientSocket(sender);
+                room.stopAcceptingClients();
+                // Sent with the sender's own ID so it is relayed as it arrived
+                String stroke = STROKE_POINTS + " " + sender.getPLayerID();
+
+                int[] count = { 0 };
+                run(name, 1, thread -> {
+                    sender.handleMessage(stroke);
+
+                    // Empty the queues now and then so nobody goes over the high water mark
+                    if (++count[0] % 64 == 0) {
+                        for (ClientHandler clientHandler : room.getClientSockets()) {
+                            clientHandler.getOutbound().poll();
+                        }
+                    }
+                    return null;
+                });
+
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encoding and decoding binary frames, which is what both sides do for every
+     * message once the binary protocol is in use
+     */
+    private static void benchmarkProtocol() throws Exception {
+        byte[] strokeFrame = BinaryProtocol.encode(STROKE_MESSAGE);
+        byte[] cursorFrame = BinaryProtocol.encode(CURSOR_MESSAGE);
+
+        run("protocol.encode.stroke", 1, thread -> BinaryProtocol.encode(STROKE_MESSAGE));
+        run("protocol.encode.cursor", 1, thread -> BinaryProtocol.encode(CURSOR_MESSAGE));
+        run("protocol.decode.stroke", 1, thread -> BinaryProtocol.decode(java.nio.ByteBuffer
+                .wrap(strokeFrame, BinaryProtocol.headerSize, strokeFrame.length - BinaryProtocol.headerSize)));
+        run("protocol.decode.cursor", 1, thread -> BinaryProtocol.decode(java.nio.ByteBuffer
+                .wrap(cursorFrame, BinaryProtocol.headerSize, cursorFrame.length - BinaryProtocol.headerSize)));
+    }
+
+    private static Object handle(ClientHandler handler, byte[] data, int offset, int length, boolean isBinary) {
+        handler.handleMessage(data, offset, length, isBinary);
+        return null;
+    }
+
+    private static Socket connect(ServerSocket listener, List<Socket> sockets) throws IOException {
+        Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        sockets.add(socket);
+        sockets.add(listener.accept());
+        return socket;
+    }
+
+    /**
+     * Checks if the benchmark matches the name filter given on the command line
+     *
+     * @param name
+     * @return
+     */
+    private static boolean isSelected(String name) {
+        return name.contains(filter);
+    }
+
+    /**
+     * Run the operation on the given number of threads for the warmup and
+     * measured iterations and print the average of the measured iterations
+     */
+    private static void run(String name, int threads, Operation operation) throws Exception {
+        if (!isSelected(name)) {
+            return;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(threads, operation);
+        }
+
+        double opsPerSecond = 0;
+        double bytesPerOp = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            double[] iteration = runIteration(threads, operation);
+            opsPerSecond += iteration[0] / MEASURED_ITERATIONS;
+            bytesPerOp += iteration[1] / MEASURED_ITERATIONS;
+        }
+
+        results.printf("%-40s %8d %16.0f %14.1f%n", name, threads, opsPerSecond, bytesPerOp);
+    }
+
+    /**
+     * Run the operation on every thread for one iteration
+     *
+     * @return The operations per second and bytes allocated per operation
+     */
+    private static double[] runIteration(int threads, Operation operation) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        LongAdder operations = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch finished = new CountDownLatch(threads);
+        Exception[] failure = { null };
+
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                long count = 0;
+                started.countDown();
+
+                try {
+                    started.await();
+                    long allocatedBefore = threadBean.getThreadAllocatedBytes(id);
+                    while (isRunning.get()) {
+                        sink = operation.run(thread);
+                        count++;
+                    }
+                    allocatedBytes.add(threadBean.getThreadAllocatedBytes(id) - allocatedBefore);
+                } catch (Exception e) {
+                    failure[0] = e;
+                } finally {
+                    operations.add(count);
+                    finished.countDown();
+                }
+            }).start();
+        }
+
+        started.await();
+        long start = System.nanoTime();
+        Thread.sleep(ITERATION_MILLIS);
+        isRunning.set(false);
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long count = Math.max(1, operations.sum());
+        return new double[] { count / seconds, (double) allocatedBytes.sum() / count };
+    }
+}
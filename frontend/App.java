@@ -2,9 +2,28 @@ import javax.swing.*;
 
 public class App {
 
+    /**
+     * Start the game, or watch a match with:
+     *
+     * <pre>
+     * java App spectate [room id] [host] [port]
+     * </pre>
+     *
+     * A room id of -1 watches any match in progress. Give the host and port of
+     * a relay to watch through it.
+     */
     public static void main(String[] args) {
+        boolean isSpectating = args.length >= 1 && args[0].equals(Constants.spectateCommand);
+        ClientSocket socket = ClientSocket.getInstance();
+
         try {
-            ClientSocket.getInstance().connect();
+            if (isSpectating && args.length >= 4) {
+                socket.setServer(args[2], Integer.parseInt(args[3]));
+            }
+            socket.connect();
+            if (isSpectating) {
+                socket.spectate(args.length >= 2 ? Integer.parseInt(args[1]) : -1);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -1,11 +1,8 @@
-import javax.swing.JPanel;
-
 public class BlockManager {
     private static BlockManager instance = null;
-    private Block[][] blocks;
+    private BoardCanvas board;
 
     private BlockManager() {
-        blocks = new Block[Constants.boardCols][Constants.boardRows]; // Initialize the 2D array
     }
 
     public static BlockManager getInstance() {
@@ -15,25 +12,48 @@ public class BlockManager {
         return instance;
     }
 
-    public void addBlocksToPanel(JPanel boardPanel) {
-        for (int i = 0; i < Constants.boardRows; i++) {
-            for (int j = 0; j < Constants.boardCols; j++) {
-                Block block = new Block(i, j);
-                blocks[i][j] = block; // Store the reference in the array
-                boardPanel.add(block);
-            }
-        }
+    /**
+     * Create the board for a new game
+     * 
+     * @param rows
+     * @param cols
+     * @return The component showing the board
+     */
+    public BoardCanvas createBoard(int rows, int cols) {
+        board = new BoardCanvas(rows, cols);
+        return board;
+    }
+
+    public BoardCanvas getBoard() {
+        return board;
     }
 
     public void setBlockAsCaptured(int x, int y, int playerID) {
-        blocks[x][y].setCaptured(playerID);
+        board.setCaptured(x, y, playerID);
     }
 
     public void setBlockAsDrawing(int x, int y, int xRelative, int yRelative, int playerID) {
-        blocks[x][y].drawPixel(xRelative, yRelative, playerID);
+        board.drawPixels(x, y, new int[] { xRelative, yRelative }, playerID);
+    }
+
+    public void drawStroke(int x, int y, int[] points, int playerID) {
+        board.drawPixels(x, y, points, playerID);
     }
 
-    public void clearBlock(int x, int y) {
-        blocks[x][y].clearLines();
+    public void clearBlock(int x, int y, int playerID) {
+        board.releaseTile(x, y, playerID);
+    }
+
+    public void syncBoard(int firstTile, int[] runs) {
+        board.setCapturedRuns(firstTile, runs);
+    }
+
+    /**
+     * Repaint the tiles changed since the last repaint, if a game is shown
+     */
+    public void repaintBoard() {
+        if (board != null) {
+            board.repaintDirty();
+        }
     }
 }
@@ -0,0 +1,478 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The game board drawn as a single component. The state of every tile is
+ * kept in flat arrays indexed by row * cols + col, so large boards don't need
+ * a component per tile.
+ *
+ * The board is drawn into an image as it changes, a new point only draws the
+ * line from the previous point of the tile, and painting the component copies
+ * the changed part of the image to the screen. Changes are collected into a
+ * dirty rectangle that is repainted once per display refresh, however many
+ * points arrive in between. Only used on the Swing thread.
+ */
+class BoardCanvas extends JPanel {
+    private ClientSocket socket = ClientSocket.getInstance();
+    private int rows;
+    private int cols;
+    private int tileSize;
+    private int gap;
+    private BasicStroke lineStroke;
+    private BasicStroke borderStroke = new BasicStroke(1);
+
+    // Player that captured each tile, -1 if the tile isn't captured
+    private int[] capturedBy;
+    // Last point drawn on each tile, the next point is joined to it. -1 if
+    // nothing has been drawn on the tile.
+    private int[] lastPointX;
+    private int[] lastPointY;
+
+    // The board as it is shown, created when it is first drawn on
+    private BufferedImage buffer;
+    private Graphics2D bufferGraphics;
+    // Part of the board changed since the last repaint, empty if none
+    private Rectangle dirty = new Rectangle();
+    private Timer repaintTimer;
+
+    // State of the tile this player is drawing on
+    private int activeTile = -1;
+    // Part of the tile drawn over, marked the same way the server checks it
+    private TileCoverage coverage;
+    // Points drawn by this player that haven't been sent to the server yet
+    private List<Point> pendingStrokePoints = new ArrayList<>();
+    private Timer strokeTimer;
+    // Tiles in view the last time they were sent to the server, as { first
+    // row, first col, last row, last col }
+    private int[] sentView = null;
+
+    BoardCanvas(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.tileSize = TileCoverage.tileSize(rows, cols);
+        // Keep the same look as before on small boards
+        this.gap = tileSize >= 40 ? 5 : 1;
+        this.lineStroke = new BasicStroke(Math.max(1, tileSize / 16));
+
+        capturedBy = new int[rows * cols];
+        Arrays.fill(capturedBy, -1);
+        coverage = new TileCoverage(tileSize);
+        lastPointX = new int[rows * cols];
+        lastPointY = new int[rows * cols];
+        Arrays.fill(lastPointX, -1);
+
+        setPreferredSize(new Dimension(cols * (tileSize + gap) - gap, rows * (tileSize + gap) - gap));
+
+        // Send whatever has been drawn if no batch has been sent for a while
+        strokeTimer = new Timer(Constants.strokeBatchDelay, e -> sendStroke());
+        strokeTimer.setRepeats(false);
+
+        repaintTimer = new Timer(1000 / Screens.getRefreshRate(), e -> repaintDirty());
+        repaintTimer.setRepeats(false);
+
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int tile = tileAt(e.getX(), e.getY());
+                if (tile == -1 || capturedBy[tile] != -1 || socket.isSpectator()) {
+                    return;
+                }
+                activeTile = tile;
+                coverage.reset();
+                // The stroke starts where the mouse was pressed
+                lastPointX[tile] = -1;
+                addStrokePoint(toTilePoint(e));
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (activeTile == -1) {
+                    return;
+                }
+                // The server needs the last points before the tile is released or captured
+                sendStroke();
+
+                int tile = activeTile;
+                activeTile = -1;
+
+                // Only the points sent to the server count, so it will agree
+                if (!coverage.isCaptured()) {
+                    String message = String.format("%s %d %d", Constants.endDrawCommand, tile / cols, tile % cols);
+                    socket.send(message);
+                    clearTile(tile / cols, tile % cols);
+                } else {
+                    resetDrawingState();
+                    setCaptured(tile / cols, tile % cols, socket.getPlayerID());
+                    // Send the end draw command to the server
+                    String message = String.format("%s %d %d", Constants.captureCommand, tile / cols, tile % cols);
+                    socket.send(message);
+                }
+            }
+        });
+
+        addMouseMotionListener(new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                if (socket.isSpectator()) {
+                    return;
+                }
+                // Sent relative to the board so it shows on the same tile for
+                // everyone, however their board is scrolled
+                String message = String.format("%s %f %f", Constants.cursorCommand, (double) e.getX() / getWidth(),
+                        (double) e.getY() / getHeight());
+                socket.send(message);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (activeTile == -1) {
+                    return;
+                }
+                addStrokePoint(toTilePoint(e));
+            }
+        });
+    }
+
+    /**
+     * Find the tile under the given position on the canvas
+     *
+     * @param x
+     * @param y
+     * @return The tile index or -1 if the position is between or outside tiles
+     */
+    private int tileAt(int x, int y) {
+        int col = x / (tileSize + gap);
+        int row = y / (tileSize + gap);
+
+        if (x < 0 || y < 0 || row >= rows || col >= cols) {
+            return -1;
+        }
+
+        // In the gap between two tiles
+        if (x % (tileSize + gap) >= tileSize || y % (tileSize + gap) >= tileSize) {
+            return -1;
+        }
+
+        return row * cols + col;
+    }
+
+    /**
+     * Position of the mouse event relative to the tile being drawn on
+     *
+     * @param e
+     * @return
+     */
+    private Point toTilePoint(MouseEvent e) {
+        Rectangle bounds = tileBounds(activeTile);
+        return new Point(e.getX() - bounds.x, e.getY() - bounds.y);
+    }
+
+    private Rectangle tileBounds(int tile) {
+        int row = tile / cols;
+        int col = tile % cols;
+        return new Rectangle(col * (tileSize + gap), row * (tileSize + gap), tileSize, tileSize);
+    }
+
+    /**
+     * Mark the tile to be repainted on the next refresh
+     *
+     * @param tile
+     */
+    private void repaintTile(int tile) {
+        Rectangle bounds = tileBounds(tile);
+
+        if (dirty.isEmpty()) {
+            dirty.setBounds(bounds);
+            repaintTimer.start();
+        } else {
+            dirty.add(bounds);
+        }
+    }
+
+    /**
+     * Repaint the part of the board changed since the last refresh. Called by
+     * the repaint timer, and after the messages from the server are handled.
+     */
+    public void repaintDirty() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        repaint(new Rectangle(dirty));
+        dirty.setSize(0, 0);
+    }
+
+    /**
+     * Get the image the board is drawn into, creating it on first use with
+     * every tile empty. It is created to match the display, so copying it to the
+     * screen doesn't need a conversion.
+     *
+     * @return
+     */
+    private Graphics2D getBufferGraphics() {
+        if (bufferGraphics != null) {
+            return bufferGraphics;
+        }
+
+        Dimension size = getPreferredSize();
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (configuration == null && !GraphicsEnvironment.isHeadless()) {
+            configuration = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration();
+        }
+
+        buffer = configuration != null ? configuration.createCompatibleImage(size.width, size.height)
+                : new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        bufferGraphics = buffer.createGraphics();
+        bufferGraphics.setColor(getBackground());
+        bufferGraphics.fillRect(0, 0, size.width, size.height);
+
+        for (int tile = 0; tile < capturedBy.length; tile++) {
+            renderTile(tile);
+        }
+
+        return bufferGraphics;
+    }
+
+    /**
+     * Draw the tile into the image from scratch, captured or empty. Lines drawn
+     * on it are erased.
+     *
+     * @param tile
+     */
+    private void renderTile(int tile) {
+        Graphics2D g = getBufferGraphics();
+        Rectangle bounds = tileBounds(tile);
+
+        g.setClip(null);
+        g.setColor(capturedBy[tile] != -1 ? Constants.playerColors[capturedBy[tile]] : getBackground());
+        g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+        g.setColor(Color.BLACK);
+        g.setStroke(borderStroke);
+        g.drawRect(bounds.x, bounds.y, bounds.width - 1, bounds.height - 1);
+
+        lastPointX[tile] = -1;
+        repaintTile(tile);
+    }
+
+    /**
+     * Tell the server which tiles are in view, so it only sends the drawing and
+     * cursors on those tiles. Called when the board is scrolled, the view is
+     * only sent when it covers different tiles.
+     */
+    public void sendView() {
+        Rectangle visible = getVisibleRect();
+        // Spectators are sent the whole board
+        if (visible.isEmpty() || socket.isSpectator()) {
+            return;
+        }
+
+        int[] view = { Math.min(rows - 1, visible.y / (tileSize + gap)),
+                Math.min(cols - 1, visible.x / (tileSize + gap)),
+                Math.min(rows - 1, (visible.y + visible.height - 1) / (tileSize + gap)),
+                Math.min(cols - 1, (visible.x + visible.width - 1) / (tileSize + gap)) };
+
+        if (Arrays.equals(view, sentView)) {
+            return;
+        }
+
+        sentView = view;
+        socket.send(String.format("%s %d %d %d %d", Constants.viewCommand, view[0], view[1], view[2], view[3]));
+    }
+
+    /**
+     * Send the points drawn since the last batch to the server as one stroke
+     * message
+     */
+    private void sendStroke() {
+        strokeTimer.stop();
+
+        if (pendingStrokePoints.isEmpty() || activeTile == -1) {
+            pendingStrokePoints.clear();
+            return;
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append(Constants.strokeCommand).append(' ').append(activeTile / cols).append(' ')
+                .append(activeTile % cols);
+        for (Point point : pendingStrokePoints) {
+            message.append(' ').append(point.x).append(' ').append(point.y);
+        }
+
+        pendingStrokePoints.clear();
+        socket.send(message.toString());
+    }
+
+    /**
+     * Draw a point of this player's stroke on the active tile and queue it for
+     * the server. Points outside the tile are skipped, the server would skip
+     * them too, so the coverage shown here stays the same as the server's.
+     *
+     * @param point The point relative to the tile
+     */
+    private void addStrokePoint(Point point) {
+        if (point.x < 0 || point.x >= tileSize || point.y < 0 || point.y >= tileSize) {
+            return;
+        }
+
+        addPoint(activeTile, point, socket.getPlayerID());
+        pendingStrokePoints.add(point);
+        coverage.addPoint(point.x, point.y);
+
+        if (pendingStrokePoints.size() >= Constants.strokeBatchSize) {
+            sendStroke();
+        } else if (!strokeTimer.isRunning()) {
+            strokeTimer.start();
+        }
+    }
+
+    /**
+     * Draw the line from the last point of the tile to this one into the image
+     *
+     * @param tile
+     * @param point    The point relative to the tile
+     * @param playerID
+     */
+    private void addPoint(int tile, Point point, int playerID) {
+        addPoint(tile, point.x, point.y, playerID);
+    }
+
+    private void addPoint(int tile, int x, int y, int playerID) {
+        if (lastPointX[tile] != -1) {
+            Graphics2D g = getBufferGraphics();
+            Rectangle bounds = tileBounds(tile);
+
+            // Lines going past the edge of the tile are cut off inside its border
+            g.setClip(bounds.x + 1, bounds.y + 1, bounds.width - 2, bounds.height - 2);
+            g.setColor(Constants.playerColors[playerID]);
+            g.setStroke(lineStroke);
+            g.drawLine(bounds.x + lastPointX[tile], bounds.y + lastPointY[tile], bounds.x + x, bounds.y + y);
+            repaintTile(tile);
+        }
+
+        lastPointX[tile] = x;
+        lastPointY[tile] = y;
+    }
+
+    private void resetDrawingState() {
+        coverage.reset();
+    }
+
+    /**
+     * Clear the lines drawn on the tile
+     *
+     * @param row
+     * @param col
+     */
+    public void clearTile(int row, int col) {
+        int tile = row * cols + col;
+        if (capturedBy[tile] != -1) {
+            return;
+        }
+
+        if (tile == activeTile || activeTile == -1) {
+            resetDrawingState();
+        }
+        renderTile(tile);
+    }
+
+    /**
+     * Clear the tile after the player stopped drawing it. If the player is
+     * shown as having captured it, the server refused the capture and it is
+     * taken back.
+     *
+     * @param row
+     * @param col
+     * @param playerID
+     */
+    public void releaseTile(int row, int col, int playerID) {
+        int tile = row * cols + col;
+        if (capturedBy[tile] == playerID) {
+            capturedBy[tile] = -1;
+        }
+        clearTile(row, col);
+    }
+
+    public void setCaptured(int row, int col, int playerID) {
+        int tile = row * cols + col;
+        capturedBy[tile] = playerID;
+        renderTile(tile);
+    }
+
+    /**
+     * Mark the tiles captured in part of a board snapshot and repaint the board
+     * once. Tiles that aren't captured in the snapshot are left as they are.
+     *
+     * @param firstTile Index of the first tile in the snapshot
+     * @param runs      The owner of the tiles and the number of tiles in a row
+     *                  with that owner, as pairs. The owner is -1 if the tiles
+     *                  aren't captured.
+     */
+    public void setCapturedRuns(int firstTile, int[] runs) {
+        int tile = firstTile;
+
+        for (int i = 0; i + 1 < runs.length; i += 2) {
+            int owner = runs[i];
+            int end = Math.min(tile + runs[i + 1], capturedBy.length);
+
+            for (; tile < end; tile++) {
+                if (owner != -1) {
+                    capturedBy[tile] = owner;
+                    renderTile(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw a batch of pixels on the tile, repainted on the next refresh
+     *
+     * @param row
+     * @param col
+     * @param points   The points as x, y pairs relative to the tile
+     * @param playerID
+     */
+    public void drawPixels(int row, int col, int[] points, int playerID) {
+        int tile = row * cols + col;
+        if (capturedBy[tile] != -1) {
+            return;
+        }
+
+        for (int i = 0; i + 1 < points.length; i += 2) {
+            addPoint(tile, points[i], points[i + 1], playerID);
+        }
+    }
+
+    /**
+     * Copy the part of the image being repainted to the screen
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        // Fills whatever is outside of the board when the window is bigger
+        super.paintComponent(g);
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+
+        getBufferGraphics();
+        g.drawImage(buffer, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, clip.x, clip.y,
+                clip.x + clip.width, clip.y + clip.height, null);
+    }
+
+    /**
+     * Stop the pending repaint once the board is no longer shown
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        repaintTimer.stop();
+    }
+}
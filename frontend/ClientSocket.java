@@ -1,17 +1,55 @@
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
+import javax.swing.Timer;
 
+/**
+ * Connection to the server. Messages are read on a background thread, which
+ * handles the connection and protocol messages itself. Every message that
+ * changes the UI is put in a queue, and the Swing thread takes everything in
+ * the queue at most once per display refresh, applies it and repaints the
+ * board once.
+ */
 public class ClientSocket {
+    // Attempts to resume the game after the connection drops, a second apart
+    private static final int RESUME_ATTEMPTS = 5;
+    private static final int RESUME_DELAY = 1000;
+    private static final Log log = Log.get(Log.Category.CLIENT);
+
     private static ClientSocket instance = null;
+    private String host = Constants.serverIP;
+    private int port = Constants.serverPort;
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private DataInputStream in;
     private boolean isClosed = false;
+    // Messages sent while waiting for the server to answer the protocol request
+    private List<String> pendingMessages = null;
+    private volatile boolean isBinaryProtocol = false;
     private String playerID = null;
+    // Spectators are sent the match but can't draw, they have player ID -1
+    private volatile boolean isSpectator = false;
     private int tilePositionX = 0;
     private int tilePositionY = 0;
+    // Needed to take the player slot back if the connection drops during a game
+    private int roomID = -1;
+    private long sessionToken = 0;
+    private volatile int lastSequence = -1;
+    private volatile boolean isGameRunning = false;
+    private volatile boolean isResuming = false;
+    // Tokens of the messages waiting to be handled on the Swing thread
+    private Queue<String[]> inbound = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean isDispatchScheduled = new AtomicBoolean();
+    private Timer dispatchTimer;
 
     private ClientSocket() {
+        dispatchTimer = new Timer(1000 / Screens.getRefreshRate(), e -> dispatchMessages());
+        dispatchTimer.setRepeats(false);
     }
 
     public static ClientSocket getInstance() {
@@ -21,26 +59,229 @@ public class ClientSocket {
         return instance;
     }
 
+    /**
+     * Connect to another server than the default one, like a relay. Must be
+     * called before connecting.
+     * 
+     * @param host
+     * @param port
+     */
+    public void setServer(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
     public void connect() throws IOException {
-        socket = new Socket(Constants.serverIP, Constants.serverPort);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        openConnection();
         this.recieveMessages();
     }
 
-    public void send(String message) {
+    private synchronized void openConnection() throws IOException {
+        socket = new Socket(host, port);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        isBinaryProtocol = false;
+
+        if (Constants.useBinaryProtocol) {
+            requestBinaryProtocol();
+        }
+    }
+
+    /**
+     * Connect again after the connection dropped during a game and ask for the
+     * player slot back. The server answers with the board changes missed since
+     * the last one this client saw.
+     * 
+     * @return false if the server couldn't be reached
+     */
+    private boolean resume() {
+        for (int attempt = 0; attempt < RESUME_ATTEMPTS && !isClosed; attempt++) {
+            try {
+                Thread.sleep(RESUME_DELAY);
+                isResuming = true;
+                openConnection();
+                send(String.format("%s %d %s %d %d", Constants.resumeCommand, roomID, playerID, sessionToken,
+                        lastSequence));
+                return true;
+            } catch (IOException e) {
+                log.warn("Failed to reconnect: %s", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Watch a match instead of playing. The server answers with the room
+     * watched, or -1 if there is no match to watch.
+     * 
+     * @param roomID The room to watch, -1 for any match in progress
+     */
+    public void spectate(int roomID) {
+        send(roomID == -1 ? Constants.spectateCommand
+                : String.format("%s %d", Constants.spectateCommand, roomID));
+    }
+
+    public synchronized void send(String message) {
         // Output message with the player id
-        out.println(message + " " + playerID);
+        String messageWithPlayerID = message + " " + playerID;
+
+        // Wait for the protocol to be agreed on before sending anything else
+        if (pendingMessages != null) {
+            pendingMessages.add(messageWithPlayerID);
+            return;
+        }
+
+        write(messageWithPlayerID);
+    }
+
+    /**
+     * Ask the server to switch to binary frames. Messages are held back until the
+     * server answers, since the server reads binary frames right after the
+     * request.
+     */
+    private synchronized void requestBinaryProtocol() {
+        pendingMessages = new ArrayList<>();
+        write(Constants.protocolCommand + " " + BinaryProtocol.version);
+    }
+
+    /**
+     * Handles the server's answer to the protocol request, the server sends back
+     * the version it switched to or 0 if it is staying on text.
+     * 
+     * @param tokens The tokens in the form: <command> <version>
+     */
+    private synchronized void handleProtocol(String[] tokens) {
+        isBinaryProtocol = Integer.parseInt(tokens[1]) == BinaryProtocol.version;
+
+        for (String message : pendingMessages) {
+            write(message);
+        }
+
+        pendingMessages = null;
+    }
+
+    private void write(String message) {
+        try {
+            if (isBinaryProtocol) {
+                out.write(BinaryProtocol.encode(message));
+            } else {
+                out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.error("Error sending message: %s", e.getMessage(), e);
+        }
     }
 
+    /**
+     * Handle a message on the thread reading from the server. The connection
+     * and protocol messages are handled right away, the protocol has to change
+     * before the next message is read. Everything else is queued for the Swing
+     * thread.
+     * 
+     * @param message
+     */
     private void handleMessage(String message) {
         if (message == null) {
             return;
         }
 
+        if (log.isTraceEnabled()) {
+            log.trace("Received message: %s", message);
+        }
+
         String[] tokens = message.split(" ");
         String commandToken = tokens[0];
 
+        switch (commandToken) {
+            case (Constants.playerIDCommand):
+                // A resuming client keeps its player ID, the server only gives it a
+                // new one until it has resumed
+                if (!isResuming) {
+                    setPlayerID(tokens[1]);
+                }
+                break;
+            case (Constants.protocolCommand):
+                handleProtocol(tokens);
+                break;
+            case (Constants.sessionCommand):
+                if (!isResuming) {
+                    roomID = Integer.parseInt(tokens[1]);
+                    sessionToken = Long.parseLong(tokens[2]);
+                }
+                break;
+            case (Constants.resumeCommand):
+                handleResume(tokens);
+                break;
+            case (Constants.spectateCommand):
+                handleSpectate(tokens);
+                break;
+            case (Constants.pingCommand):
+                // Answered on this thread so the round trip doesn't include the UI
+                send(Constants.pongCommand + " " + tokens[1]);
+                break;
+            case (Constants.startCommand):
+                // Known right away so a dropped connection is resumed
+                isGameRunning = true;
+                queueMessage(tokens);
+                break;
+            case (Constants.endCommand):
+                isGameRunning = false;
+                queueMessage(tokens);
+                break;
+            default:
+                queueMessage(tokens);
+                break;
+        }
+    }
+
+    /**
+     * Queue a message for the Swing thread, which handles it with the other
+     * messages received before the next refresh
+     * 
+     * @param tokens
+     */
+    private void queueMessage(String[] tokens) {
+        inbound.add(tokens);
+
+        if (isDispatchScheduled.compareAndSet(false, true)) {
+            dispatchTimer.start();
+        }
+    }
+
+    /**
+     * Handle every queued message and repaint the board once. Runs on the Swing
+     * thread.
+     */
+    private void dispatchMessages() {
+        // Cleared first, a message queued from now on schedules another dispatch
+        isDispatchScheduled.set(false);
+
+        String[] tokens = inbound.poll();
+        while (tokens != null) {
+            try {
+                handleUIMessage(tokens);
+            } catch (RuntimeException e) {
+                log.error("Error handling message %s: %s", String.join(" ", tokens), e.getMessage(), e);
+            }
+            tokens = inbound.poll();
+        }
+
+        BlockManager.getInstance().repaintBoard();
+    }
+
+    /**
+     * Handle a message that changes the UI, on the Swing thread
+     * 
+     * @param tokens
+     */
+    private void handleUIMessage(String[] tokens) {
+        String commandToken = tokens[0];
+
         switch (commandToken) {
             case (Constants.cursorCommand):
                 // Tokens are <x position> <y position> <player id>
@@ -49,6 +290,9 @@ public class ClientSocket {
             case (Constants.startDrawCommand):
                 handleDrawing(tokens);
                 break;
+            case (Constants.strokeCommand):
+                handleStroke(tokens);
+                break;
             case (Constants.endDrawCommand):
                 handleEndDraw(tokens);
                 break;
@@ -59,17 +303,106 @@ public class ClientSocket {
                 handleCapture(tokens);
                 break;
             case (Constants.startCommand):
-                Screens.getInstance().createAndShowGUI();
+                handleStart(tokens);
                 break;
-            case (Constants.playerIDCommand):
-                setPlayerID(tokens[1]);
+            case (Constants.syncCommand):
+                handleSync(tokens);
                 break;
             default:
-                System.out.println("Unrecognized command from frontend: " + commandToken);
+                log.warn("Unrecognized command from server: %s", commandToken);
                 break;
         }
     }
 
+    private void handleStart(String[] tokens) {
+        // Tokens are <player count> <rows> <cols>
+        int rows = Constants.boardRows;
+        int cols = Constants.boardCols;
+        if (tokens.length >= 4) {
+            rows = Integer.parseInt(tokens[2]);
+            cols = Integer.parseInt(tokens[3]);
+        }
+
+        Screens.getInstance().createAndShowGUI(rows, cols);
+    }
+
+    private void handleResume(String[] tokens) {
+        // Tokens are <player id>, -1 if the slot couldn't be resumed
+        isResuming = false;
+
+        if (Integer.parseInt(tokens[1]) == -1) {
+            log.warn("The game could not be resumed.");
+            isGameRunning = false;
+            try {
+                close();
+            } catch (IOException e) {
+                log.error("Error closing the connection: %s", e.getMessage(), e);
+            }
+            return;
+        }
+
+        log.info("Resumed the game.");
+    }
+
+    /**
+     * Handles the answer to the spectate request
+     * 
+     * @param tokens The tokens in the form: <command> <room id>, -1 if there is
+     *               no match to watch
+     */
+    private void handleSpectate(String[] tokens) {
+        int watchedRoomID = Integer.parseInt(tokens[1]);
+
+        if (watchedRoomID == -1) {
+            log.warn("There is no match to watch.");
+            return;
+        }
+
+        // Spectators can't resume, there is no slot to take back
+        isSpectator = true;
+        playerID = "-1";
+        roomID = watchedRoomID;
+        sessionToken = 0;
+        log.info("Watching the match in room %d.", watchedRoomID);
+    }
+
+    /**
+     * Handles part of a board snapshot, sent when the changes this client missed
+     * are too old to send one by one
+     * 
+     * @param tokens The tokens in the form: <command> <version> <rows> <cols>
+     *               <first tile> (<owner> <length>)...
+     */
+    private void handleSync(String[] tokens) {
+        int version = Integer.parseInt(tokens[1]);
+        int firstTile = Integer.parseInt(tokens[4]);
+
+        int[] runs = new int[tokens.length - 5];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = Integer.parseInt(tokens[i + 5]);
+        }
+
+        BlockManager.getInstance().syncBoard(firstTile, runs);
+        updateSequence(version);
+    }
+
+    /**
+     * Keep track of the latest board change seen, captures and releases from
+     * the server end with its sequence number
+     * 
+     * @param tokens
+     * @param sequenceIndex Index of the sequence number in the tokens
+     */
+    private void updateSequence(String[] tokens, int sequenceIndex) {
+        if (tokens.length > sequenceIndex) {
+            updateSequence(Integer.parseInt(tokens[sequenceIndex]));
+        }
+    }
+
+    private void updateSequence(int sequence) {
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
     private void handleGameEnd(String[] tokens) {
         String[] playerScores = new String[tokens.length - 1];
         for (int i = 0; i < playerScores.length; i++) {
@@ -91,13 +424,30 @@ public class ClientSocket {
         CursorManager.getInstance().getCursor(playerID).hide();
     }
 
+    private void handleStroke(String[] tokens) {
+        // Tokens are <tile x> <tile y> <x> <y> ... <player id>
+        tilePositionX = Integer.parseInt(tokens[1]);
+        tilePositionY = Integer.parseInt(tokens[2]);
+        int playerID = Integer.parseInt(tokens[tokens.length - 1]);
+
+        int[] points = new int[tokens.length - 4];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = Integer.parseInt(tokens[i + 3]);
+        }
+
+        BlockManager.getInstance().drawStroke(tilePositionX, tilePositionY, points, playerID);
+        // hide the cursor when drawing
+        CursorManager.getInstance().getCursor(playerID).hide();
+    }
+
     private void handleEndDraw(String[] tokens) {
         tilePositionX = Integer.parseInt(tokens[1]);
         tilePositionY = Integer.parseInt(tokens[2]);
         int playerID = Integer.parseInt(tokens[3]);
 
-        BlockManager.getInstance().clearBlock(tilePositionX, tilePositionY);
+        BlockManager.getInstance().clearBlock(tilePositionX, tilePositionY, playerID);
         CursorManager.getInstance().getCursor(playerID).show();
+        updateSequence(tokens, 4);
 
     }
 
@@ -109,16 +459,32 @@ public class ClientSocket {
 
         BlockManager.getInstance().setBlockAsCaptured(tileX, tileY, userPlayerID);
         CursorManager.getInstance().getCursor(playerID).show();
+        updateSequence(tokens, 4);
     }
 
     private void recieveMessages() {
         new Thread(() -> {
             while (!isClosed) {
                 try {
-                    String message = in.readLine();
+                    String message;
+                    if (isBinaryProtocol) {
+                        message = BinaryProtocol.readFrame(in);
+                    } else {
+                        message = BinaryProtocol.readLine(in);
+                    }
+                    if (message == null) {
+                        throw new EOFException("Connection closed by the server");
+                    }
                     handleMessage(message);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    if (isClosed) {
+                        break;
+                    }
+                    // The server closes the connection once the game has ended
+                    if (!isGameRunning || sessionToken == 0 || !resume()) {
+                        log.warn("Lost connection to the server: %s", e.getMessage());
+                        isClosed = true;
+                    }
                 }
             }
         }).start();
@@ -138,13 +504,22 @@ public class ClientSocket {
 
         int intPlayerID = Integer.parseInt(id);
 
+        // The room is full, the match can only be watched
         if (intPlayerID == -1) {
-            System.exit(1);
+            isSpectator = true;
+            log.info("The room is full, watching the match instead.");
         }
 
         playerID = id;
     }
 
+    /**
+     * Handles a cursor position of another player. The cursor is moved to it
+     * smoothly by the cursor manager.
+     * 
+     * @param tokens The tokens in the form: <command> <x position> <y position>
+     *               <player id> [<server time>]
+     */
     private void handleCursorCommand(String[] tokens) {
         double x = Double.parseDouble(tokens[1]);
         double y = Double.parseDouble(tokens[2]);
@@ -153,16 +528,24 @@ public class ClientSocket {
         Cursor cursor = cursorManager.getCursor(playerID);
 
         if (cursor == null) {
-            System.out.println("Creating new cursor for player: " + playerID);
+            Log.get(Log.Category.UI).debug("Creating new cursor for player: %d", playerID);
             cursor = new Cursor(playerID);
             cursorManager.addCursor(cursor);
         }
 
+        // Servers that don't send the time of the position get the time it
+        // arrived, shown a bit less smoothly
+        int time = tokens.length >= 5 ? Integer.parseInt(tokens[4]) : (int) (System.nanoTime() / 1_000_000);
+
         cursor.show();
-        cursor.move(x, y);
+        cursorManager.addSample(cursor, time, x, y);
     }
 
     public int getPlayerID() {
         return Integer.parseInt(playerID);
     }
+
+    public boolean isSpectator() {
+        return isSpectator;
+    }
 }
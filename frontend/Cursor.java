@@ -1,19 +1,40 @@
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
-import java.awt.event.MouseEvent;
-import java.awt.event.MouseMotionAdapter;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URL;
 
+/**
+ * Crayon cursor of a player. The cursor of this player replaces the mouse
+ * cursor, the cursors of the other players are labels moved over the board.
+ *
+ * The server sends the other cursors a few times a second, stamped with the
+ * time on the server. The latest positions are kept and the cursor is drawn
+ * a little in the past, between the two positions around that time, so it
+ * moves smoothly however far apart the positions arrive. If the next position
+ * is late the cursor keeps going the same way for a moment.
+ */
 class Cursor extends JComponent {
+    // Positions kept to move the cursor between
+    private static final int SAMPLES = 4;
+
     private JFrame frame;
     private BufferedImage cursorImage;
     private JLabel cursorLabel;
     private int cursorX = 0;
     private int cursorY = 0;
     private int playerID = 0;
+    // Hidden while the player is drawing
+    private boolean isShown = false;
+
+    // Latest positions from the server, in a ring with the newest at
+    // newestSample. Times are the server's clock in milliseconds.
+    private int[] sampleTimes = new int[SAMPLES];
+    private double[] sampleX = new double[SAMPLES];
+    private double[] sampleY = new double[SAMPLES];
+    private int sampleCount = 0;
+    private int newestSample = -1;
 
     public Cursor() {
         this.frame = Screens.getInstance().getFrame();
@@ -25,24 +46,9 @@ class Cursor extends JComponent {
                 new Point(calculateHotspotX(), calculateHotspotY()),
                 "crayonCursor");
 
-        // Set the custom cursor for the entire JFrame
+        // Set the custom cursor for the entire JFrame, the board sends its position
         this.frame.setCursor(customCursor);
         this.frame.add(this);
-
-        // Add event listeners for mouse movement
-        this.frame.addMouseMotionListener(new MouseMotionAdapter() {
-            public void mouseMoved(MouseEvent e) {
-                // get mouse location relative to the frame
-                int x = e.getX();
-                int y = e.getY();
-
-                double resX = (double) x / frame.getWidth();
-                double resY = (double) y / frame.getHeight();
-
-                String message = String.format("%s %f %f", Constants.cursorCommand, resX, resY);
-                ClientSocket.getInstance().send(message);
-            }
-        });
     }
 
     public Cursor(int playerID) {
@@ -64,17 +70,99 @@ class Cursor extends JComponent {
     }
 
     public void show() {
-        if (isShowing()) {
-            return;
+        if (!isShown && sampleCount > 0) {
+            isShown = true;
+            move(sampleX[newestSample], sampleY[newestSample]);
         }
-
-        cursorLabel.setVisible(true);
+        isShown = true;
     }
 
     public void hide() {
+        isShown = false;
         cursorLabel.setVisible(false);
     }
 
+    /**
+     * Add a position received from the server
+     * 
+     * @param time Time of the position on the server's clock
+     * @param x    Position across the board from 0 to 1
+     * @param y    Position down the board from 0 to 1
+     */
+    public void addSample(int time, double x, double y) {
+        // Positions can't arrive out of order over TCP, but the clock can
+        // restart if the server does
+        if (sampleCount > 0 && time - sampleTimes[newestSample] <= 0) {
+            sampleCount = 0;
+        }
+
+        newestSample = (newestSample + 1) % SAMPLES;
+        sampleTimes[newestSample] = time;
+        sampleX[newestSample] = x;
+        sampleY[newestSample] = y;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+    }
+
+    /**
+     * Move the cursor to where it was at the given time, between the two
+     * positions around it. After the newest position the cursor keeps moving at
+     * its last speed for up to maxExtrapolation milliseconds.
+     * 
+     * @param time             Time on the server's clock
+     * @param maxExtrapolation
+     * @return true if the cursor is still moving
+     */
+    public boolean render(int time, int maxExtrapolation) {
+        if (sampleCount == 0) {
+            return false;
+        }
+
+        int newest = newestSample;
+        int previous = (newest + SAMPLES - 1) % SAMPLES;
+
+        if (sampleCount == 1) {
+            move(sampleX[newest], sampleY[newest]);
+            return false;
+        }
+
+        // Ahead of the newest position, keep going the same way for a while
+        if (time - sampleTimes[newest] >= 0) {
+            int ahead = Math.min(time - sampleTimes[newest], maxExtrapolation);
+            moveBetween(previous, newest, sampleTimes[newest] + ahead);
+            return time - sampleTimes[newest] < maxExtrapolation;
+        }
+
+        // Find the two positions around the time, newest first
+        for (int i = 1; i < sampleCount; i++) {
+            int older = (newest + SAMPLES - i) % SAMPLES;
+            if (time - sampleTimes[older] >= 0) {
+                moveBetween(older, (older + 1) % SAMPLES, time);
+                return true;
+            }
+        }
+
+        // Older than every position kept
+        int oldest = (newest + SAMPLES - sampleCount + 1) % SAMPLES;
+        move(sampleX[oldest], sampleY[oldest]);
+        return true;
+    }
+
+    /**
+     * Move to the point on the line through two positions at the time, past the
+     * second position if the time is after it
+     * 
+     * @param from
+     * @param to
+     * @param time
+     */
+    private void moveBetween(int from, int to, int time) {
+        int duration = sampleTimes[to] - sampleTimes[from];
+        double fraction = duration <= 0 ? 1 : (double) (time - sampleTimes[from]) / duration;
+
+        move(sampleX[from] + (sampleX[to] - sampleX[from]) * fraction,
+                sampleY[from] + (sampleY[to] - sampleY[from]) * fraction);
+    }
+
     private int calculateHotspotX() {
         return cursorImage.getWidth() / 2 - 15;
     }
@@ -86,15 +174,32 @@ class Cursor extends JComponent {
     /**
      * Move the cursor to the specified location
      * 
-     * @param x
-     * @param y
+     * @param x Position across the board from 0 to 1
+     * @param y Position down the board from 0 to 1
      */
     public void move(double x, double y) {
+        BoardCanvas board = BlockManager.getInstance().getBoard();
+        if (board == null || cursorLabel.getParent() == null) {
+            return;
+        }
+
+        Point point = new Point((int) (x * board.getWidth()), (int) (y * board.getHeight()));
+
+        // Hidden while the player is drawing or the position is scrolled out of
+        // view
+        if (!isShown || !board.getVisibleRect().contains(point)) {
+            cursorLabel.setVisible(false);
+            return;
+        }
+
+        point = SwingUtilities.convertPoint(board, point, cursorLabel.getParent());
+
         // This is some hacky shit to get the cursor to appear in the right spot...
-        this.cursorX = (int) (x * frame.getWidth()) - 10;
-        this.cursorY = (int) (y * frame.getHeight()) - (calculateHotspotY() * 2);
+        this.cursorX = point.x - 10;
+        this.cursorY = point.y - (calculateHotspotY() * 2);
 
         cursorLabel.setBounds(this.cursorX, this.cursorY, cursorLabel.getWidth(), cursorLabel.getHeight());
+        cursorLabel.setVisible(true);
         this.repaint();
     }
 
@@ -1,12 +1,31 @@
 import java.util.List;
 import java.util.ArrayList;
+import javax.swing.Timer;
 
+/**
+ * Keeps the cursors of the other players and moves them on every display
+ * refresh while they are moving. The cursors are drawn INTERPOLATION_DELAY
+ * behind the server's clock, so there is usually a position after the time
+ * being drawn even though positions only arrive Constants.cursorTickRate
+ * times a second.
+ */
 public class CursorManager {
+    // One and a half cursor ticks, so one late position doesn't stop the cursor
+    private static final int INTERPOLATION_DELAY = 1500 / Constants.cursorTickRate;
+    // How long a cursor keeps moving past its newest position
+    private static final int MAX_EXTRAPOLATION = 1000 / Constants.cursorTickRate;
+
     private static CursorManager instance = null;
     private List<Cursor> cursors;
+    private Timer renderTimer;
+    // Local time minus server time in milliseconds, from the position that
+    // arrived the quickest. Wraps around like the times.
+    private int clockOffset = 0;
+    private boolean hasClockOffset = false;
 
     private CursorManager() {
         cursors = new ArrayList<Cursor>();
+        renderTimer = new Timer(1000 / Screens.getRefreshRate(), e -> renderCursors());
         instance = this;
     }
 
@@ -32,6 +51,8 @@ public class CursorManager {
     }
 
     public void createCursors() {
+        // The cursors of the last game were removed with its screen
+        cursors.clear();
         // New cursor is for the player
         new Cursor();
         // Other cursors are for other players
@@ -39,4 +60,53 @@ public class CursorManager {
             addCursor(new Cursor(i));
         }
     }
+
+    /**
+     * Add a position of another player's cursor and start moving the cursors if
+     * they aren't already
+     * 
+     * @param cursor
+     * @param time   Time of the position on the server's clock
+     * @param x
+     * @param y
+     */
+    public void addSample(Cursor cursor, int time, double x, double y) {
+        // The position that took the least time to arrive gives the best guess
+        // of the server's clock. The guess slowly moves later so it follows the
+        // connection getting slower.
+        int offset = localTime() - time;
+        if (!hasClockOffset || offset - clockOffset < 0) {
+            clockOffset = offset;
+            hasClockOffset = true;
+        } else if (offset - clockOffset > 0) {
+            clockOffset++;
+        }
+
+        cursor.addSample(time, x, y);
+
+        if (!renderTimer.isRunning()) {
+            renderTimer.start();
+        }
+    }
+
+    /**
+     * Move every cursor to where it was INTERPOLATION_DELAY ago, stopping once
+     * none of them are moving
+     */
+    private void renderCursors() {
+        int time = localTime() - clockOffset - INTERPOLATION_DELAY;
+        boolean isMoving = false;
+
+        for (Cursor cursor : cursors) {
+            isMoving |= cursor.render(time, MAX_EXTRAPOLATION);
+        }
+
+        if (!isMoving) {
+            renderTimer.stop();
+        }
+    }
+
+    private static int localTime() {
+        return (int) (System.nanoTime() / 1_000_000);
+    }
 }
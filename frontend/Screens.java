@@ -3,6 +3,10 @@ import java.awt.*;
 
 public class Screens {
     private static Screens instance = null;
+    // Boards bigger than this are scrolled instead of growing the window
+    private static final int MAX_VIEWPORT_SIZE = 720;
+    // Used when the display doesn't report its refresh rate
+    private static final int DEFAULT_REFRESH_RATE = 60;
     private JFrame frame;
 
     private Screens() {
@@ -19,6 +23,25 @@ public class Screens {
         return frame;
     }
 
+    /**
+     * Refresh rate of the display, the UI isn't updated more often than this
+     *
+     * @return
+     */
+    public static int getRefreshRate() {
+        try {
+            GraphicsDevice device = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+            int refreshRate = device.getDisplayMode().getRefreshRate();
+            if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN && refreshRate > 0) {
+                return refreshRate;
+            }
+        } catch (HeadlessException e) {
+            // No display to match
+        }
+
+        return DEFAULT_REFRESH_RATE;
+    }
+
     public void start() {
         frame = new JFrame("Deny and Conquer");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -32,24 +55,28 @@ public class Screens {
         frame.setVisible(true);
     }
 
-    public void createAndShowGUI() {
+    public void createAndShowGUI(int rows, int cols) {
         frame.getContentPane().removeAll();
 
-        JPanel boardPanel = new JPanel(new GridLayout(Constants.boardCols, Constants.boardRows, 5, 5)) {
-            @Override
-            public Insets getInsets() {
-                return new Insets(0, 0, 0, 0);
-            }
-        };
+        BoardCanvas boardPanel = BlockManager.getInstance().createBoard(rows, cols);
+
+        // Boards bigger than the window can be scrolled
+        JScrollPane boardScrollPane = new JScrollPane(boardPanel);
+        boardScrollPane.setBorder(BorderFactory.createEmptyBorder());
+        Dimension boardSize = boardPanel.getPreferredSize();
+        boardScrollPane.setPreferredSize(new Dimension(Math.min(boardSize.width, MAX_VIEWPORT_SIZE),
+                Math.min(boardSize.height, MAX_VIEWPORT_SIZE)));
 
-        BlockManager.getInstance().addBlocksToPanel(boardPanel);
+        // The server only sends the drawing on the tiles in view
+        boardScrollPane.getViewport().addChangeListener(e -> boardPanel.sendView());
 
         CursorManager.getInstance().createCursors();
-        frame.add(boardPanel);
+        frame.add(boardScrollPane);
         frame.revalidate(); // Update the frame layout
         frame.repaint(); // Repaint the frame to reflect the changes
         frame.pack();
         frame.setVisible(true);
+        boardPanel.sendView();
     }
 
     public void endGameScreen(String[] playerScores) {
@@ -7,6 +7,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 public class StartScreenPanel extends JPanel {
+    private static final int[] boardSizes = { 8, 16, 32, 64, 128, Constants.maxBoardSize };
+    private JComboBox<String> boardSizeBox;
+
     public StartScreenPanel() {
         setLayout(new BorderLayout());
 
@@ -37,8 +40,16 @@ public class StartScreenPanel extends JPanel {
             }
         });
 
+        // Board size used if this player starts the game
+        boardSizeBox = new JComboBox<>();
+        for (int size : boardSizes) {
+            boardSizeBox.addItem(size + " x " + size);
+        }
+        boardSizeBox.setFont(new Font("Arial", Font.PLAIN, 14));
+
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
         buttonPanel.setOpaque(false); // Set the panel background to be transparent
+        buttonPanel.add(boardSizeBox);
         buttonPanel.add(startButton);
         add(buttonPanel, BorderLayout.SOUTH);
 
@@ -46,9 +57,15 @@ public class StartScreenPanel extends JPanel {
     }
 
     private void startGame() {
-        String message = String.format("%s", Constants.startCommand);
+        // Spectators wait for the players to start
+        if (ClientSocket.getInstance().isSpectator()) {
+            return;
+        }
+
+        int boardSize = boardSizes[boardSizeBox.getSelectedIndex()];
+        String message = String.format("%s %d %d", Constants.startCommand, boardSize, boardSize);
         ClientSocket.getInstance().send(message);
-        Screens.getInstance().createAndShowGUI();
+        Screens.getInstance().createAndShowGUI(boardSize, boardSize);
     }
 
     @Override
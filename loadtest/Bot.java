@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A headless player. It speaks the same protocol as ClientSocket, but instead
+ * of following a mouse it moves its cursor and draws on random tiles at the
+ * rates it is given.
+ *
+ * Every cursor and stroke message carries the bot index and a sequence number,
+ * so the bots in the same room that receive it can look up when it was sent
+ * and record how long the server took to relay it. Strokes carry them as their
+ * first point and cursors as their x and y position.
+ */
+class Bot {
+    // Send times kept per message kind, the sequence number wraps around at this
+    private static final int SEQUENCES = 4096;
+    private static final int CURSOR_SCALE = 0xFFFF;
+
+    private LoadGenerator generator;
+    private int index;
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private volatile boolean isBinaryProtocol = false;
+    private volatile boolean isConnected = false;
+    private volatile boolean isStarted = false;
+    private volatile int playerID = -1;
+    private volatile int rows = Constants.boardRows;
+    private volatile int cols = Constants.boardCols;
+
+    private AtomicLongArray cursorSendTimes = new AtomicLongArray(SEQUENCES);
+    private AtomicLongArray strokeSendTimes = new AtomicLongArray(SEQUENCES);
+    private int cursorSequence = 0;
+    private int strokeSequence = 0;
+
+    // Tile being drawn on, -1 if the bot isn't drawing
+    private int tileRow = -1;
+    private int tileCol = -1;
+    private int strokesOnTile = 0;
+
+    Bot(LoadGenerator generator, int index) {
+        this.generator = generator;
+        this.index = index;
+    }
+
+    /**
+     * Connect to the server and wait until the player ID, and the protocol answer
+     * if binary frames were asked for, have been received
+     *
+     * @throws IOException
+     */
+    public void connect() throws IOException {
+        socket = new Socket(generator.getHost(), generator.getPort());
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        isBinaryProtocol = false;
+        isStarted = false;
+        playerID = -1;
+
+        // The server answers before reading anything else, so nothing is sent
+        // until the answer arrives
+        if (generator.isBinaryProtocol()) {
+            write(Constants.protocolCommand + " " + BinaryProtocol.version);
+            while (!isBinaryProtocol) {
+                String message = BinaryProtocol.readLine(in);
+                if (message == null) {
+                    throw new IOException("Connection closed while agreeing on the protocol");
+                }
+                handleMessage(message);
+                if (message.startsWith(Constants.protocolCommand)) {
+                    break;
+                }
+            }
+        }
+
+        while (playerID == -1) {
+            String message = isBinaryProtocol ? BinaryProtocol.readFrame(in) : BinaryProtocol.readLine(in);
+            if (message == null) {
+                throw new IOException("Connection closed before receiving a player ID");
+            }
+            handleMessage(message);
+        }
+
+        isConnected = true;
+        Thread receiver = new Thread(this::receiveMessages, "bot-" + index);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    public int getPlayerID() {
+        return playerID;
+    }
+
+    public long getCursorSendTime(int sequence) {
+        return cursorSendTimes.get(sequence % SEQUENCES);
+    }
+
+    public long getStrokeSendTime(int sequence) {
+        return strokeSendTimes.get(sequence % SEQUENCES);
+    }
+
+    /**
+     * Start the game in the bot's room
+     *
+     * @param boardSize
+     */
+    public void startGame(int boardSize) {
+        rows = boardSize;
+        cols = boardSize;
+        isStarted = true;
+        send(String.format("%s %d %d", Constants.startCommand, boardSize, boardSize));
+    }
+
+    /**
+     * Move the cursor, called at the cursor rate
+     */
+    public void tickCursor() {
+        if (!isConnected || !isStarted) {
+            return;
+        }
+
+        int sequence = cursorSequence++ % SEQUENCES;
+        cursorSendTimes.set(sequence, System.nanoTime());
+        send(String.format("%s %f %f", Constants.cursorCommand, (double) index / CURSOR_SCALE,
+                (double) sequence / CURSOR_SCALE));
+        generator.getStats().countSent(Constants.cursorCommand);
+    }
+
+    /**
+     * Draw a batch of points on the current tile, or pick a new tile. After
+     * enough strokes the tile is captured or released.
+     */
+    public void tickStroke() {
+        if (!isConnected || !isStarted) {
+            return;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (tileRow == -1) {
+            tileRow = random.nextInt(rows);
+            tileCol = random.nextInt(cols);
+            strokesOnTile = 0;
+        }
+
+        if (strokesOnTile == generator.getStrokesPerTile()) {
+            String command = random.nextDouble() < generator.getCaptureChance() ? Constants.captureCommand
+                    : Constants.endDrawCommand;
+            send(String.format("%s %d %d", command, tileRow, tileCol));
+            generator.getStats().countSent(command);
+            tileRow = -1;
+            return;
+        }
+
+        int sequence = strokeSequence++ % SEQUENCES;
+        StringBuilder message = new StringBuilder();
+        message.append(Constants.strokeCommand).append(' ').append(tileRow).append(' ').append(tileCol);
+        message.append(' ').append(index).append(' ').append(sequence);
+        // Spread over the whole tile so the server lets the bot capture it
+        int tileSize = TileCoverage.tileSize(rows, cols);
+        for (int i = 1; i < generator.getStrokePoints(); i++) {
+            message.append(' ').append(random.nextInt(tileSize)).append(' ').append(random.nextInt(tileSize));
+        }
+
+        strokeSendTimes.set(sequence, System.nanoTime());
+        send(message.toString());
+        generator.getStats().countSent(Constants.strokeCommand);
+        strokesOnTile++;
+    }
+
+    private void send(String message) {
+        write(message + " " + playerID);
+    }
+
+    private synchronized void write(String message) {
+        try {
+            byte[] bytes = isBinaryProtocol ? BinaryProtocol.encode(message)
+                    : (message + "\n").getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            out.flush();
+            generator.getStats().countBytesSent(bytes.length);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void receiveMessages() {
+        try {
+            while (isConnected) {
+                String message = isBinaryProtocol ? BinaryProtocol.readFrame(in) : BinaryProtocol.readLine(in);
+                if (message == null) {
+                    break;
+                }
+                handleMessage(message);
+            }
+        } catch (IOException e) {
+            // Treated the same as the server closing the connection
+        }
+
+        // The server only closes a started game after sending the end, unless
+        // the bot was disconnected
+        if (isStarted && generator.isRunning()) {
+            generator.getStats().countEndMissed();
+        }
+
+        close();
+
+        // The server closes every connection in the room when a game ends, join
+        // the next game like a player going back to the start screen
+        if (generator.isRunning()) {
+            generator.reconnect(this);
+        }
+    }
+
+    private void handleMessage(String message) {
+        String[] tokens = message.trim().split(" ");
+        long now = System.nanoTime();
+        generator.getStats().countReceived(tokens[0]);
+
+        switch (tokens[0]) {
+            case (Constants.playerIDCommand):
+                playerID = Integer.parseInt(tokens[1]);
+                break;
+            case (Constants.protocolCommand):
+                isBinaryProtocol = Integer.parseInt(tokens[1]) == BinaryProtocol.version;
+                break;
+            case (Constants.startCommand):
+                // Tokens are <player count> <rows> <cols>
+                if (tokens.length >= 4) {
+                    rows = Integer.parseInt(tokens[2]);
+                    cols = Integer.parseInt(tokens[3]);
+                }
+                isStarted = true;
+                break;
+            case (Constants.cursorCommand): {
+                // Tokens are <x position> <y position> <player id>
+                int sender = (int) Math.round(Double.parseDouble(tokens[1]) * CURSOR_SCALE);
+                int sequence = (int) Math.round(Double.parseDouble(tokens[2]) * CURSOR_SCALE);
+                generator.recordCursorLatency(sender, sequence, now);
+                break;
+            }
+            case (Constants.strokeCommand):
+                // Tokens are <tile x> <tile y> <bot index> <sequence> ... <player id>
+                if (tokens.length >= 6) {
+                    generator.recordStrokeLatency(Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]), now);
+                }
+                break;
+            case (Constants.endCommand):
+                isStarted = false;
+                generator.getStats().countGameEnded();
+                break;
+            case (Constants.pingCommand):
+                // Answered right away so the server measures its own round trip
+                send(Constants.pongCommand + " " + tokens[1]);
+                generator.getStats().countSent(Constants.pongCommand);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void close() {
+        isConnected = false;
+        isStarted = false;
+        tileRow = -1;
+
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates many players against a running server without opening any
+ * windows. The bots join rooms four at a time like real clients, the first
+ * player of each room starts the game, and then every bot moves its cursor and
+ * draws on random tiles at the configured rates until the run is over. When a
+ * game ends the bots join the next one.
+ *
+ * Every few seconds the messages sent and received per second and the time
+ * the server took to relay cursors and strokes to the other players in the
+ * room (p50, p99, p99.9 and max) are printed, followed by a summary of the
+ * whole run.
+ *
+ * The summary counts the bots whose connection was closed during a game
+ * without being sent the end. Every player should get it, including the one
+ * that captured the last tile, which board=1 captureChance=1 checks quickly.
+ *
+ * Compile and run it from the project root while the server is running:
+ *
+ * <pre>
+ * javac -d loadtest/out loadtest/*.java shared/*.java
+ * java -cp loadtest/out LoadGenerator bots=200 seconds=60
+ * </pre>
+ *
+ * Options are given as name=value, see the fields below for the defaults.
+ */
+public class LoadGenerator {
+    private static final int REJOIN_DELAY_MILLIS = 1000;
+    // Time the first player of a room waits for the others before starting
+    private static final int START_DELAY_MILLIS = 1000;
+
+    private String host = Constants.serverIP;
+    private int port = Constants.serverPort;
+    private int botCount = 100;
+    private int seconds = 30;
+    private int reportSeconds = 5;
+    private boolean isBinaryProtocol = Constants.useBinaryProtocol;
+    private int boardSize = Constants.boardRows;
+    // Messages per second sent by each bot
+    private double cursorRate = 30;
+    private double strokeRate = 1000.0 / Constants.strokeBatchDelay;
+    private int strokePoints = Constants.strokeBatchSize;
+    // Strokes drawn on a tile before it is captured or released
+    private int strokesPerTile = 8;
+    private double captureChance = 0.5;
+
+    private Bot[] bots;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean isRunning = false;
+    private Stats stats = new Stats();
+
+    /**
+     * Counters and latency histograms, latencies are in microseconds
+     */
+    static class Stats {
+        private Map<String, LongAdder> sent = new ConcurrentHashMap<>();
+        private Map<String, LongAdder> received = new ConcurrentHashMap<>();
+        private LongAdder bytesSent = new LongAdder();
+        private LongAdder gamesEnded = new LongAdder();
+        private LongAdder endsMissed = new LongAdder();
+        private LongAdder connectFailures = new LongAdder();
+        private Histogram cursorLatency = new Histogram();
+        private Histogram strokeLatency = new Histogram();
+
+        public void countSent(String command) {
+            sent.computeIfAbsent(command, c -> new LongAdder()).increment();
+        }
+
+        public void countReceived(String command) {
+            received.computeIfAbsent(command, c -> new LongAdder()).increment();
+        }
+
+        public void countBytesSent(int bytes) {
+            bytesSent.add(bytes);
+        }
+
+        public void countGameEnded() {
+            gamesEnded.increment();
+        }
+
+        public void countEndMissed() {
+            endsMissed.increment();
+        }
+
+        private static long sum(Map<String, LongAdder> counters) {
+            long total = 0;
+            for (LongAdder counter : counters.values()) {
+                total += counter.sum();
+            }
+            return total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            generator.setOption(arg);
+        }
+        generator.run();
+    }
+
+    private void setOption(String option) {
+        String[] parts = option.split("=", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Options are given as name=value: " + option);
+        }
+
+        String value = parts[1];
+        switch (parts[0]) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "bots":
+                botCount = Integer.parseInt(value);
+                break;
+            case "seconds":
+                seconds = Integer.parseInt(value);
+                break;
+            case "report":
+                reportSeconds = Integer.parseInt(value);
+                break;
+            case "binary":
+                isBinaryProtocol = Boolean.parseBoolean(value);
+                break;
+            case "board":
+                boardSize = Math.max(1, Math.min(Constants.maxBoardSize, Integer.parseInt(value)));
+                break;
+            case "cursorRate":
+                cursorRate = Double.parseDouble(value);
+                break;
+            case "strokeRate":
+                strokeRate = Double.parseDouble(value);
+                break;
+            case "strokePoints":
+                strokePoints = Math.max(1, Integer.parseInt(value));
+                break;
+            case "strokesPerTile":
+                strokesPerTile = Math.max(1, Integer.parseInt(value));
+                break;
+            case "captureChance":
+                captureChance = Double.parseDouble(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + parts[0]);
+        }
+    }
+
+    private void run() throws InterruptedException {
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        bots = new Bot[botCount];
+        isRunning = true;
+
+        System.out.printf("Connecting %d bots to %s:%d%n", botCount, host, port);
+
+        // Connect one at a time so the rooms fill up in order
+        for (int i = 0; i < botCount; i++) {
+            bots[i] = new Bot(this, i);
+            try {
+                bots[i].connect();
+            } catch (IOException e) {
+                stats.connectFailures.increment();
+                System.out.println("Bot " + i + " failed to connect: " + e.getMessage());
+            }
+        }
+
+        for (Bot bot : bots) {
+            if (bot.isConnected() && bot.getPlayerID() == 0) {
+                bot.startGame(boardSize);
+            }
+        }
+
+        for (Bot bot : bots) {
+            schedule(bot::tickCursor, cursorRate);
+            schedule(bot::tickStroke, strokeRate);
+        }
+
+        printHeader();
+        Histogram cursorTotal = new Histogram();
+        Histogram strokeTotal = new Histogram();
+        long lastSent = 0;
+        long lastReceived = 0;
+        long start = System.nanoTime();
+
+        for (int elapsed = reportSeconds; elapsed <= seconds; elapsed += reportSeconds) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime()) / 1_000_000);
+
+            long sent = Stats.sum(stats.sent);
+            long received = Stats.sum(stats.received);
+            printRow(String.valueOf(elapsed), (double) (sent - lastSent) / reportSeconds,
+                    (double) (received - lastReceived) / reportSeconds, stats.cursorLatency, stats.strokeLatency);
+
+            // The histograms only hold the last interval, keep the totals for the summary
+            cursorTotal.add(stats.cursorLatency);
+            strokeTotal.add(stats.strokeLatency);
+            stats.cursorLatency.reset();
+            stats.strokeLatency.reset();
+            lastSent = sent;
+            lastReceived = received;
+        }
+
+        isRunning = false;
+        scheduler.shutdownNow();
+        for (Bot bot : bots) {
+            bot.close();
+        }
+
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        printRow("total", Stats.sum(stats.sent) / elapsedSeconds, Stats.sum(stats.received) / elapsedSeconds,
+                cursorTotal, strokeTotal);
+        printSummary(elapsedSeconds, cursorTotal, strokeTotal);
+    }
+
+    /**
+     * Run the task at the given rate per second, starting at a random point of
+     * the first period so the bots don't all send at once
+     *
+     * @param task
+     * @param rate
+     */
+    private void schedule(Runnable task, double rate) {
+        if (rate <= 0) {
+            return;
+        }
+
+        long periodMicros = Math.max(1, (long) (1_000_000 / rate));
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // An exception would cancel the task, keep the bot going
+                e.printStackTrace();
+            }
+        }, ThreadLocalRandom.current().nextLong(periodMicros), periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Connect the bot again after its connection was closed, starting the game if
+     * it is the first player of its new room
+     *
+     * @param bot
+     */
+    public void reconnect(Bot bot) {
+        if (!isRunning || scheduler.isShutdown()) {
+            return;
+        }
+
+        scheduler.schedule(() -> {
+            if (!isRunning) {
+                return;
+            }
+
+            try {
+                bot.connect();
+            } catch (IOException e) {
+                stats.connectFailures.increment();
+                reconnect(bot);
+                return;
+            }
+
+            if (bot.getPlayerID() == 0) {
+                scheduler.schedule(() -> {
+                    if (bot.isConnected()) {
+                        bot.startGame(boardSize);
+                    }
+                }, START_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }, REJOIN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordCursorLatency(int botIndex, int sequence, long receivedAt) {
+        if (botIndex >= 0 && botIndex < bots.length && bots[botIndex] != null) {
+            recordLatency(stats.cursorLatency, bots[botIndex].getCursorSendTime(sequence), receivedAt);
+        }
+    }
+
+    public void recordStrokeLatency(int botIndex, int sequence, long receivedAt) {
+        if (botIndex >= 0 && botIndex < bots.length && bots[botIndex] != null) {
+            recordLatency(stats.strokeLatency, bots[botIndex].getStrokeSendTime(sequence), receivedAt);
+        }
+    }
+
+    private static void recordLatency(Histogram histogram, long sentAt, long receivedAt) {
+        // Nothing was sent with this sequence number yet
+        if (sentAt == 0) {
+            return;
+        }
+
+        histogram.record((receivedAt - sentAt) / 1000);
+    }
+
+    private void printHeader() {
+        System.out.printf("%n%-6s %10s %10s   %-32s %-32s%n", "Time", "Sent/s", "Recv/s",
+                "Cursor ms (p50 p99 p99.9 max)", "Stroke ms (p50 p99 p99.9 max)");
+    }
+
+    private void printRow(String time, double sentPerSecond, double receivedPerSecond, Histogram cursor,
+            Histogram stroke) {
+        System.out.printf("%-6s %10.0f %10.0f   %-32s %-32s%n", time, sentPerSecond, receivedPerSecond,
+                formatLatency(cursor), formatLatency(stroke));
+    }
+
+    private static String formatLatency(Histogram histogram) {
+        return String.format("%.1f %.1f %.1f %.1f", histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(99) / 1000.0, histogram.getPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0);
+    }
+
+    private void printSummary(double elapsedSeconds, Histogram cursor, Histogram stroke) {
+        System.out.printf("%nBots: %d, games ended: %d, failed connections: %d%n", botCount,
+                stats.gamesEnded.sum(), stats.connectFailures.sum());
+        System.out.printf("Connections closed during a game without the end: %d%n", stats.endsMissed.sum());
+        System.out.printf("Sent: %.0f KB/s%n", stats.bytesSent.sum() / 1024.0 / elapsedSeconds);
+        System.out.printf("Latency samples: %d cursor, %d stroke%n", cursor.getCount(), stroke.getCount());
+
+        System.out.printf("%n%-10s %12s %12s%n", "Command", "Sent", "Received");
+        Map<String, long[]> counts = new TreeMap<>();
+        stats.sent.forEach((command, count) -> counts.computeIfAbsent(command, c -> new long[2])[0] = count.sum());
+        stats.received
+                .forEach((command, count) -> counts.computeIfAbsent(command, c -> new long[2])[1] = count.sum());
+        counts.forEach((command, count) -> System.out.printf("%-10s %12d %12d%n", command, count[0], count[1]));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isBinaryProtocol() {
+        return isBinaryProtocol;
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public int getStrokePoints() {
+        return strokePoints;
+    }
+
+    public int getStrokesPerTile() {
+        return strokesPerTile;
+    }
+
+    public double getCaptureChance() {
+        return captureChance;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Watches one match on the server as a spectator and sends it on to any
+ * number of viewers, so a match watched by many people costs the server a
+ * single connection. Viewers connect to the relay the same way they would to
+ * the server, they are given player ID -1 and can't draw.
+ *
+ * The relay keeps the start of the match and who captured each tile. A viewer
+ * joining in the middle of the match is sent the start and a snapshot of the
+ * board, then every message from the server after it. Each message is encoded
+ * once per protocol for all the viewers. A viewer that falls too far behind
+ * is disconnected instead of holding up the others.
+ *
+ * When the match ends or the server closes the connection, the viewers are
+ * sent what is left and disconnected, and the relay waits for the next match.
+ *
+ * Compile and run it from the project root while the server is running, then
+ * watch with java App spectate -1 localhost 3100:
+ *
+ * <pre>
+ * javac -d relay/out relay/*.java shared/*.java
+ * java -cp relay/out Relay room=0 port=3100
+ * </pre>
+ *
+ * Options are given as name=value, see the fields below for the defaults.
+ */
+public class Relay {
+    private static final int RETRY_DELAY_MILLIS = 1000;
+    private static final int SYNC_RUNS_PER_MESSAGE = 4096;
+    private static final int MAX_RUN_LENGTH = 0xFFFF;
+    private static final Log log = Log.get(Log.Category.SERVER);
+
+    private String upstreamHost = Constants.serverIP;
+    private int upstreamPort = Constants.serverPort;
+    // Room to watch, -1 for any match in progress
+    private int roomID = -1;
+    private int port = Constants.relayPort;
+    // Messages waiting to be sent to a viewer before it is disconnected
+    private int maxQueued = 4096;
+
+    // The match being watched, guarded by the relay
+    private List<Viewer> viewers = new ArrayList<>();
+    private int watchedRoomID = -1;
+    private String startMessage = null;
+    private int version = -1;
+    private int rows = 0;
+    private int cols = 0;
+    // Player that captured each tile, -1 if none
+    private int[] owners = null;
+
+    public static void main(String[] args) throws IOException {
+        Relay relay = new Relay();
+
+        for (String arg : args) {
+            relay.parseOption(arg);
+        }
+
+        relay.run();
+    }
+
+    private void parseOption(String option) {
+        String[] parts = option.split("=", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Options are given as name=value: " + option);
+        }
+
+        String value = parts[1];
+        switch (parts[0]) {
+            case "host":
+                upstreamHost = value;
+                break;
+            case "upstreamPort":
+                upstreamPort = Integer.parseInt(value);
+                break;
+            case "room":
+                roomID = Integer.parseInt(value);
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "queue":
+                maxQueued = Math.max(1, Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + parts[0]);
+        }
+    }
+
+    private void run() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        log.info("Relay listening on port %d, watching %s on %s:%d", port,
+                roomID == -1 ? "any match" : "room " + roomID, upstreamHost, upstreamPort);
+
+        Thread upstream = new Thread(this::watchUpstream, "relay-upstream");
+        upstream.setDaemon(true);
+        upstream.start();
+
+        while (true) {
+            Socket socket = serverSocket.accept();
+            try {
+                addViewer(new Viewer(this, socket, maxQueued));
+            } catch (IOException e) {
+                log.warn("Error accepting viewer: %s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Watch matches on the server one after another, connecting again whenever
+     * the connection ends
+     */
+    private void watchUpstream() {
+        while (true) {
+            try (Socket socket = new Socket(upstreamHost, upstreamPort)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream out = socket.getOutputStream();
+
+                // Sent with player ID -1 like a client, the server only reads the room
+                String request = roomID == -1 ? Constants.spectateCommand
+                        : String.format("%s %d", Constants.spectateCommand, roomID);
+                out.write((request + " -1\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                String message = BinaryProtocol.readLine(in);
+                while (message != null) {
+                    if (message.startsWith(Constants.pingCommand + " ")) {
+                        // Answered here, viewers aren't pinged by the server
+                        out.write((message.replace(Constants.pingCommand, Constants.pongCommand) + " -1\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    } else if (!handleUpstreamMessage(message)) {
+                        break;
+                    }
+                    message = BinaryProtocol.readLine(in);
+                }
+            } catch (IOException e) {
+                log.warn("Connection to the server failed: %s", e.getMessage());
+            }
+
+            endMatch();
+
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Update the match with a message from the server and send it to every
+     * viewer
+     *
+     * @param message
+     * @return false if there is nothing to watch and the connection should be
+     *         closed
+     */
+    private synchronized boolean handleUpstreamMessage(String message) {
+        String[] tokens = message.split(" ");
+
+        switch (tokens[0]) {
+            case (Constants.playerIDCommand):
+            case (Constants.sessionCommand):
+                // For the player slot held until the spectate request is handled
+                return true;
+            case (Constants.spectateCommand):
+                watchedRoomID = Integer.parseInt(tokens[1]);
+                if (watchedRoomID == -1) {
+                    return false;
+                }
+                log.info("Watching room %d", watchedRoomID);
+                return true;
+            case (Constants.startCommand):
+                // Tokens are <player count> <rows> <cols>
+                startMessage = message;
+                rows = tokens.length >= 4 ? Integer.parseInt(tokens[2]) : Constants.boardRows;
+                cols = tokens.length >= 4 ? Integer.parseInt(tokens[3]) : Constants.boardCols;
+                owners = new int[rows * cols];
+                Arrays.fill(owners, -1);
+                version = -1;
+                break;
+            case (Constants.syncCommand):
+                applySync(tokens);
+                break;
+            case (Constants.captureCommand):
+                // Tokens are <row> <col> <player id> <sequence>
+                if (owners != null) {
+                    owners[Integer.parseInt(tokens[1]) * cols + Integer.parseInt(tokens[2])] = Integer
+                            .parseInt(tokens[3]);
+                }
+                updateVersion(tokens, 4);
+                break;
+            case (Constants.endDrawCommand):
+                updateVersion(tokens, 4);
+                break;
+            default:
+                break;
+        }
+
+        fanOut(message);
+        return true;
+    }
+
+    /**
+     * Apply part of a board snapshot from the server
+     *
+     * @param tokens The tokens in the form: <command> <version> <rows> <cols>
+     *               <first tile> (<owner> <length>)...
+     */
+    private void applySync(String[] tokens) {
+        if (owners == null) {
+            return;
+        }
+
+        int tile = Integer.parseInt(tokens[4]);
+        for (int i = 5; i + 1 < tokens.length; i += 2) {
+            int owner = Integer.parseInt(tokens[i]);
+            int end = Math.min(owners.length, tile + Integer.parseInt(tokens[i + 1]));
+            Arrays.fill(owners, tile, end, owner);
+            tile = end;
+        }
+        version = Math.max(version, Integer.parseInt(tokens[1]));
+    }
+
+    private void updateVersion(String[] tokens, int sequenceIndex) {
+        if (tokens.length > sequenceIndex) {
+            version = Math.max(version, Integer.parseInt(tokens[sequenceIndex]));
+        }
+    }
+
+    /**
+     * Queue a message for every viewer, encoded at most once per protocol
+     *
+     * @param message
+     */
+    private void fanOut(String message) {
+        byte[] text = null;
+        byte[] binary = null;
+
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            Viewer viewer = viewers.get(i);
+            boolean isQueued;
+
+            if (viewer.isBinaryProtocol()) {
+                if (binary == null) {
+                    binary = BinaryProtocol.encode(message);
+                }
+                isQueued = viewer.offer(binary);
+            } else {
+                if (text == null) {
+                    text = (message + "\n").getBytes(StandardCharsets.UTF_8);
+                }
+                isQueued = viewer.offer(text);
+            }
+
+            if (!isQueued) {
+                log.warn("Viewer %s fell behind, disconnecting it.", viewer);
+                viewers.remove(i);
+                viewer.close();
+            }
+        }
+    }
+
+    /**
+     * Send a new viewer the match so far and add it to the viewers, while no
+     * message from the server can come in between
+     *
+     * @param viewer
+     */
+    private synchronized void addViewer(Viewer viewer) {
+        viewer.send(Constants.playerIDCommand + " -1");
+        // No session token, there is no player slot to resume
+        viewer.send(String.format("%s %d 0", Constants.sessionCommand, watchedRoomID));
+
+        if (startMessage != null) {
+            viewer.send(startMessage);
+            for (String message : getSyncMessages()) {
+                viewer.send(message);
+            }
+        }
+
+        viewers.add(viewer);
+        viewer.start();
+        log.info("Viewer %s connected, %d watching", viewer, viewers.size());
+    }
+
+    /**
+     * Called by a viewer when its connection has ended
+     *
+     * @param viewer
+     */
+    synchronized void removeViewer(Viewer viewer) {
+        if (viewers.remove(viewer)) {
+            log.info("Viewer %s disconnected, %d watching", viewer, viewers.size());
+        }
+    }
+
+    /**
+     * Answer a viewer's request to watch a match with the room being watched
+     *
+     * @param viewer
+     */
+    synchronized void answerSpectate(Viewer viewer) {
+        if (watchedRoomID != -1) {
+            viewer.send(String.format("%s %d", Constants.spectateCommand, watchedRoomID));
+        }
+    }
+
+    /**
+     * Snapshot of the captured tiles, in the same messages the server sends
+     *
+     * @return
+     */
+    private List<String> getSyncMessages() {
+        List<String> messages = new ArrayList<>();
+        String header = String.format("%s %d %d %d", Constants.syncCommand, version, rows, cols);
+
+        int tile = 0;
+        while (tile < owners.length) {
+            StringBuilder message = new StringBuilder(header).append(' ').append(tile);
+
+            for (int runs = 0; runs < SYNC_RUNS_PER_MESSAGE && tile < owners.length; runs++) {
+                int owner = owners[tile];
+                int length = 0;
+                while (tile < owners.length && owners[tile] == owner && length < MAX_RUN_LENGTH) {
+                    tile++;
+                    length++;
+                }
+                message.append(' ').append(owner).append(' ').append(length);
+            }
+
+            messages.add(message.toString());
+        }
+
+        return messages;
+    }
+
+    /**
+     * Disconnect the viewers once they have been sent everything, and forget
+     * the match. Viewers waiting for a match to start are kept.
+     */
+    private synchronized void endMatch() {
+        if (watchedRoomID == -1) {
+            return;
+        }
+
+        for (Viewer viewer : viewers) {
+            viewer.finish();
+        }
+        if (!viewers.isEmpty()) {
+            log.info("Match ended, disconnected %d viewers", viewers.size());
+        }
+
+        viewers.clear();
+        watchedRoomID = -1;
+        startMessage = null;
+        owners = null;
+        version = -1;
+    }
+}
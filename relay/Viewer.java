@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A client watching through the relay. Messages are queued by the relay and
+ * written by the viewer's own thread, so a slow viewer only fills its own
+ * queue. Another thread reads from the viewer, only the protocol request is
+ * answered, the rest is ignored since spectators can't play.
+ */
+class Viewer {
+    // Queued to close the connection once everything before it is sent
+    private static final byte[] CLOSE = new byte[0];
+
+    private Relay relay;
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private BlockingQueue<byte[]> queue;
+    private volatile boolean isBinaryProtocol = false;
+    private volatile boolean isClosed = false;
+
+    Viewer(Relay relay, Socket socket, int maxQueued) throws IOException {
+        this.relay = relay;
+        this.socket = socket;
+        // Sent directly, cursors and strokes are already batched by the server
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        queue = new ArrayBlockingQueue<>(maxQueued);
+    }
+
+    /**
+     * Start writing the queued messages and reading from the viewer
+     */
+    public void start() {
+        Thread writer = new Thread(this::writeMessages, "viewer-writer-" + socket.getPort());
+        writer.setDaemon(true);
+        writer.start();
+
+        Thread reader = new Thread(this::readMessages, "viewer-reader-" + socket.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isBinaryProtocol() {
+        return isBinaryProtocol;
+    }
+
+    /**
+     * Queue an encoded message, called while holding the relay lock so the
+     * messages are queued in the order they came from the server
+     *
+     * @param message Encoded for the viewer's protocol, not changed afterwards
+     * @return false if the queue is full
+     */
+    public boolean offer(byte[] message) {
+        return !isClosed && queue.offer(message);
+    }
+
+    /**
+     * Encode and queue a message only this viewer is sent
+     *
+     * @param message
+     */
+    public void send(String message) {
+        byte[] bytes = isBinaryProtocol ? BinaryProtocol.encode(message)
+                : (message + "\n").getBytes(StandardCharsets.UTF_8);
+        if (!offer(bytes)) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection after the queued messages have been sent
+     */
+    public void finish() {
+        if (!queue.offer(CLOSE)) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection right away
+     */
+    public void close() {
+        isClosed = true;
+        // Wake up the writer if it is waiting for a message
+        queue.clear();
+        queue.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing either way
+        }
+    }
+
+    private void writeMessages() {
+        try {
+            while (!isClosed) {
+                byte[] message = queue.take();
+                if (message == CLOSE) {
+                    out.flush();
+                    break;
+                }
+
+                out.write(message);
+                // Write everything queued before flushing
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The viewer is gone
+        }
+
+        close();
+        relay.removeViewer(this);
+    }
+
+    private void readMessages() {
+        try {
+            while (!isClosed) {
+                String message = isBinaryProtocol ? BinaryProtocol.readFrame(in) : BinaryProtocol.readLine(in);
+                if (message == null) {
+                    break;
+                }
+
+                String[] tokens = message.split(" ");
+                if (tokens[0].equals(Constants.protocolCommand)) {
+                    handleProtocol(tokens);
+                } else if (tokens[0].equals(Constants.spectateCommand)) {
+                    relay.answerSpectate(this);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The viewer is gone or sent something that isn't a message
+        }
+
+        close();
+        relay.removeViewer(this);
+    }
+
+    /**
+     * Handles the protocol request, the answer is the last text message and
+     * everything queued after it is binary
+     *
+     * @param tokens The tokens in the form: <command> <version>
+     */
+    private void handleProtocol(String[] tokens) {
+        synchronized (relay) {
+            boolean isSupported = Integer.parseInt(tokens[1]) == BinaryProtocol.version;
+            send(Constants.protocolCommand + " " + (isSupported ? BinaryProtocol.version : 0));
+            isBinaryProtocol = isSupported;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return socket.getRemoteSocketAddress().toString();
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing for the game commands. It is used instead of the
+ * text protocol once the client and server agree on it with the
+ * protocolCommand, clients that never ask for it keep using text lines.
+ *
+ * Every frame is a 2 byte length (not including itself), a 1 byte opcode and
+ * the fixed width fields of the command, all big endian:
+ *
+ * <pre>
+ * cursor   <player id u8> <x u16> <y u16> [<time s32>]   x and y are quantized to 0-65535
+ * draw     <tile x u16> <tile y u16> <x s16> <y s16> <player id u8>
+ * stroke   <tile x u16> <tile y u16> <player id u8> <point count u16> (<x s16> <y s16>)...
+ * endDraw  <tile x u16> <tile y u16> <player id u8> [<sequence s32>]
+ * capture  <tile x u16> <tile y u16> <player id u8> [<sequence s32>]
+ * start    <field count u8> <field u16>...       player count or board size
+ * end      <score count u8> <score s32>...
+ * playerID <player id s8>
+ * sync     <version s32> <rows u16> <cols u16> <first tile s32> <run count u16> (<owner s8> <length u16>)...
+ * text     <utf-8 text>                        any other message
+ * </pre>
+ *
+ * Frames are converted to and from the text commands at the socket so the
+ * rest of the game keeps handling messages as text.
+ */
+public class BinaryProtocol {
+    public static final int version = 1;
+
+    // Opcodes
+    public static final byte textOpcode = 0;
+    public static final byte cursorOpcode = 1;
+    public static final byte drawOpcode = 2;
+    public static final byte endDrawOpcode = 3;
+    public static final byte captureOpcode = 4;
+    public static final byte startOpcode = 5;
+    public static final byte endOpcode = 6;
+    public static final byte playerIDOpcode = 7;
+    public static final byte strokeOpcode = 8;
+    public static final byte syncOpcode = 9;
+
+    // Size of the length prefix in front of every frame
+    public static final int headerSize = 2;
+    // Cursor positions are fractions of the frame size scaled to this
+    private static final int cursorScale = 0xFFFF;
+
+    /**
+     * Encode a text command into a binary frame, including the length prefix.
+     * Messages that don't match one of the known commands are sent as text
+     * frames.
+     *
+     * @param message The text command
+     * @return
+     */
+    public static byte[] encode(String message) {
+        String[] tokens = message.trim().split(" ");
+
+        try {
+            ByteBuffer frame = encodeCommand(tokens);
+            if (frame != null) {
+                return toFrame(frame);
+            }
+        } catch (NumberFormatException e) {
+            // Fall back to sending the message as text
+        }
+
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + text.length);
+        frame.put(textOpcode);
+        frame.put(text);
+        return toFrame(frame);
+    }
+
+    private static ByteBuffer encodeCommand(String[] tokens) {
+        ByteBuffer frame;
+
+        switch (tokens[0]) {
+            case (Constants.cursorCommand):
+                // Tokens are <command> <x position> <y position> <player id>, the
+                // server adds the time of the cursor tick
+                if (tokens.length != 4 && tokens.length != 5) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(tokens.length == 5 ? 10 : 6);
+                frame.put(cursorOpcode);
+                frame.put((byte) Integer.parseInt(tokens[3]));
+                frame.putShort(quantize(Double.parseDouble(tokens[1])));
+                frame.putShort(quantize(Double.parseDouble(tokens[2])));
+                if (tokens.length == 5) {
+                    frame.putInt(Integer.parseInt(tokens[4]));
+                }
+                return frame;
+            case (Constants.startDrawCommand):
+                // Tokens are <command> <tile x> <tile y> <x> <y> <player id> <player id>
+                if (tokens.length != 7) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(10);
+                frame.put(drawOpcode);
+                frame.putShort((short) Integer.parseInt(tokens[1]));
+                frame.putShort((short) Integer.parseInt(tokens[2]));
+                frame.putShort((short) Integer.parseInt(tokens[3]));
+                frame.putShort((short) Integer.parseInt(tokens[4]));
+                frame.put((byte) Integer.parseInt(tokens[6]));
+                return frame;
+            case (Constants.strokeCommand): {
+                // Tokens are <command> <tile x> <tile y> <x> <y> ... <player id>
+                int pointCount = (tokens.length - 4) / 2;
+                if (tokens.length < 4 || (tokens.length - 4) % 2 != 0) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(8 + 4 * pointCount);
+                frame.put(strokeOpcode);
+                frame.putShort((short) Integer.parseInt(tokens[1]));
+                frame.putShort((short) Integer.parseInt(tokens[2]));
+                frame.put((byte) Integer.parseInt(tokens[tokens.length - 1]));
+                frame.putShort((short) pointCount);
+                for (int i = 3; i < tokens.length - 1; i++) {
+                    frame.putShort((short) Integer.parseInt(tokens[i]));
+                }
+                return frame;
+            }
+            case (Constants.endDrawCommand):
+            case (Constants.captureCommand):
+                // Tokens are <command> <tile x> <tile y> <player id>, the server adds
+                // the sequence number of the board change
+                if (tokens.length != 4 && tokens.length != 5) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(tokens.length == 5 ? 10 : 6);
+                frame.put(tokens[0].equals(Constants.captureCommand) ? captureOpcode : endDrawOpcode);
+                frame.putShort((short) Integer.parseInt(tokens[1]));
+                frame.putShort((short) Integer.parseInt(tokens[2]));
+                frame.put((byte) Integer.parseInt(tokens[3]));
+                if (tokens.length == 5) {
+                    frame.putInt(Integer.parseInt(tokens[4]));
+                }
+                return frame;
+            case (Constants.syncCommand): {
+                // Tokens are <command> <version> <rows> <cols> <first tile> (<owner> <length>)...
+                int runCount = (tokens.length - 5) / 2;
+                if (tokens.length < 5 || (tokens.length - 5) % 2 != 0) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(15 + 3 * runCount);
+                frame.put(syncOpcode);
+                frame.putInt(Integer.parseInt(tokens[1]));
+                frame.putShort((short) Integer.parseInt(tokens[2]));
+                frame.putShort((short) Integer.parseInt(tokens[3]));
+                frame.putInt(Integer.parseInt(tokens[4]));
+                frame.putShort((short) runCount);
+                for (int i = 5; i < tokens.length; i += 2) {
+                    frame.put((byte) Integer.parseInt(tokens[i]));
+                    frame.putShort((short) Integer.parseInt(tokens[i + 1]));
+                }
+                return frame;
+            }
+            case (Constants.startCommand):
+                // Tokens are <command> <player count> <rows> <cols> from the server
+                // and <command> [<rows> <cols>] <player id> from the client
+                frame = ByteBuffer.allocate(2 + 2 * (tokens.length - 1));
+                frame.put(startOpcode);
+                frame.put((byte) (tokens.length - 1));
+                for (int i = 1; i < tokens.length; i++) {
+                    frame.putShort((short) Integer.parseInt(tokens[i]));
+                }
+                return frame;
+            case (Constants.endCommand):
+                // Tokens are <command> <score>...
+                frame = ByteBuffer.allocate(2 + 4 * (tokens.length - 1));
+                frame.put(endOpcode);
+                frame.put((byte) (tokens.length - 1));
+                for (int i = 1; i < tokens.length; i++) {
+                    frame.putInt(Integer.parseInt(tokens[i]));
+                }
+                return frame;
+            case (Constants.playerIDCommand):
+                // Tokens are <command> <player id>
+                if (tokens.length != 2) {
+                    return null;
+                }
+                frame = ByteBuffer.allocate(2);
+                frame.put(playerIDOpcode);
+                frame.put((byte) Integer.parseInt(tokens[1]));
+                return frame;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decode a frame back into the text command it was encoded from.
+     *
+     * @param frame Buffer holding the opcode and fields, without the length prefix
+     * @return
+     */
+    public static String decode(ByteBuffer frame) {
+        byte opcode = frame.get();
+
+        switch (opcode) {
+            case cursorOpcode: {
+                int playerID = frame.get();
+                double x = unquantize(frame.getShort());
+                double y = unquantize(frame.getShort());
+                if (frame.remaining() >= 4) {
+                    return String.format("%s %f %f %d %d", Constants.cursorCommand, x, y, playerID, frame.getInt());
+                }
+                return String.format("%s %f %f %d", Constants.cursorCommand, x, y, playerID);
+            }
+            case drawOpcode: {
+                int tileX = Short.toUnsignedInt(frame.getShort());
+                int tileY = Short.toUnsignedInt(frame.getShort());
+                int x = frame.getShort();
+                int y = frame.getShort();
+                int playerID = frame.get();
+                // The player id is sent twice by the text protocol, keep the same shape
+                return String.format("%s %d %d %d %d %d %d", Constants.startDrawCommand, tileX, tileY, x, y,
+                        playerID, playerID);
+            }
+            case strokeOpcode: {
+                int tileX = Short.toUnsignedInt(frame.getShort());
+                int tileY = Short.toUnsignedInt(frame.getShort());
+                int playerID = frame.get();
+                int pointCount = Short.toUnsignedInt(frame.getShort());
+                StringBuilder message = new StringBuilder();
+                message.append(Constants.strokeCommand).append(' ').append(tileX).append(' ').append(tileY);
+                for (int i = 0; i < pointCount * 2; i++) {
+                    message.append(' ').append(frame.getShort());
+                }
+                return message.append(' ').append(playerID).toString();
+            }
+            case endDrawOpcode:
+            case captureOpcode: {
+                String command = opcode == captureOpcode ? Constants.captureCommand : Constants.endDrawCommand;
+                int tileX = Short.toUnsignedInt(frame.getShort());
+                int tileY = Short.toUnsignedInt(frame.getShort());
+                int playerID = frame.get();
+                if (frame.remaining() >= 4) {
+                    return String.format("%s %d %d %d %d", command, tileX, tileY, playerID, frame.getInt());
+                }
+                return String.format("%s %d %d %d", command, tileX, tileY, playerID);
+            }
+            case syncOpcode: {
+                int version = frame.getInt();
+                int rows = Short.toUnsignedInt(frame.getShort());
+                int cols = Short.toUnsignedInt(frame.getShort());
+                int firstTile = frame.getInt();
+                int runCount = Short.toUnsignedInt(frame.getShort());
+                StringBuilder message = new StringBuilder();
+                message.append(Constants.syncCommand).append(' ').append(version).append(' ').append(rows)
+                        .append(' ').append(cols).append(' ').append(firstTile);
+                for (int i = 0; i < runCount; i++) {
+                    message.append(' ').append(frame.get()).append(' ').append(Short.toUnsignedInt(frame.getShort()));
+                }
+                return message.toString();
+            }
+            case startOpcode: {
+                int fieldCount = Byte.toUnsignedInt(frame.get());
+                StringBuilder message = new StringBuilder(Constants.startCommand);
+                for (int i = 0; i < fieldCount; i++) {
+                    message.append(' ').append(Short.toUnsignedInt(frame.getShort()));
+                }
+                return message.toString();
+            }
+            case endOpcode: {
+                int scoreCount = Byte.toUnsignedInt(frame.get());
+                StringBuilder message = new StringBuilder(Constants.endCommand + " ");
+                for (int i = 0; i < scoreCount; i++) {
+                    message.append(frame.getInt()).append(" ");
+                }
+                return message.toString();
+            }
+            case playerIDOpcode:
+                return Constants.playerIDCommand + " " + frame.get();
+            default:
+                byte[] text = new byte[frame.remaining()];
+                frame.get(text);
+                return new String(text, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Read one frame from the stream and decode it
+     *
+     * @param in
+     * @return The decoded text command or null if the stream has ended
+     * @throws IOException
+     */
+    public static String readFrame(DataInputStream in) throws IOException {
+        byte[] frame;
+
+        try {
+            frame = new byte[in.readUnsignedShort()];
+            in.readFully(frame);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Read a text line from the stream. Unlike BufferedReader this doesn't read
+     * past the end of the line, so the same stream can switch to binary frames
+     * once the protocol has been agreed on.
+     *
+     * @param in
+     * @return The line without the line ending or null if the stream has ended
+     * @throws IOException
+     */
+    public static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+
+        while (b != -1 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+
+        return text;
+    }
+
+    private static byte[] toFrame(ByteBuffer frame) {
+        byte[] bytes = new byte[headerSize + frame.position()];
+        ByteBuffer.wrap(bytes).putShort((short) frame.position()).put(frame.array(), 0, frame.position());
+        return bytes;
+    }
+
+    private static short quantize(double position) {
+        double clamped = Math.max(0, Math.min(1, position));
+        return (short) Math.round(clamped * cursorScale);
+    }
+
+    private static double unquantize(short position) {
+        return (double) Short.toUnsignedInt(position) / cursorScale;
+    }
+}
@@ -4,19 +4,48 @@ public class Constants {
     // Commands
     public static final String cursorCommand = "cursor";
     public static final String startDrawCommand = "draw";
+    public static final String strokeCommand = "stroke";
     public static final String endDrawCommand = "endDraw";
     public static final String endCommand = "end";
     public static final String captureCommand = "capture";
     public static final String playerIDCommand = "playerID";
     public static final String startCommand = "start";
+    public static final String protocolCommand = "protocol";
+    public static final String sessionCommand = "session";
+    public static final String resumeCommand = "resume";
+    public static final String syncCommand = "sync";
+    public static final String viewCommand = "view";
+    public static final String spectateCommand = "spectate";
+    public static final String pingCommand = "ping";
+    public static final String pongCommand = "pong";
 
     // Server
     public static final String serverIP = "localhost";
     public static final int serverPort = 3000;
+    public static final int maxPlayers = 4;
+    // Port spectators connect to when watching through a relay
+    public static final int relayPort = 3100;
+    // How many times a second the server sends out cursor positions, clients
+    // move the cursors smoothly in between
+    public static final int cursorTickRate = 15;
+    // Ask the server to switch to binary frames after connecting
+    public static final boolean useBinaryProtocol = true;
 
-    // Board
+    // Board, the rows and cols are the default size when the game is started
+    // without picking one
     public static final int boardRows = 8;
     public static final int boardCols = 8;
+    public static final int maxBoardSize = 256;
+    // Size of the board on screen, tiles are never made smaller than minTileSize
+    public static final int boardPixelSize = 640;
+    public static final int minTileSize = 8;
+
+    // Drawing
+    // Stroke points are sent once this many have been drawn or the delay has passed
+    public static final int strokeBatchSize = 16;
+    public static final int strokeBatchDelay = 50;
+    // Part of a tile that must be drawn over to capture it, checked by the server
+    public static final double captureCoverage = 0.25;
 
     // Player colors
     public static final String[] playerColorsStrings = { "Blue", "Red", "Green", "Yellow" };
@@ -0,0 +1,254 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging with a category per part of the game. Log calls never touch
+ * the console, they put the message in a lock free ring buffer and a
+ * background thread formats and prints it. If the buffer is full the message is
+ * dropped and counted instead of making the caller wait.
+ *
+ * Each category logs at INFO and above unless changed with system properties:
+ *
+ * <pre>
+ * -Dlog.level=WARN             every category
+ * -Dlog.level.MESSAGE=TRACE    one category, e.g. every message received
+ * </pre>
+ *
+ * Formatting only happens on the background thread, but the arguments are
+ * still boxed by the caller, so hot paths check isEnabled() first.
+ */
+public class Log {
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    public enum Category {
+        // Backend
+        SERVER, LOBBY, ROOM, CONNECTION, MESSAGE,
+        // Frontend
+        CLIENT, UI
+    }
+
+    // Must be a power of two
+    private static final int BUFFER_SIZE = 8192;
+    private static final long IDLE_PARK_NANOS = 5_000_000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final Log[] loggers = new Log[Category.values().length];
+
+    // Ring buffer shared by every category. A slot can be written when its
+    // sequence is its position and read when it is its position + 1.
+    private static final Entry[] entries = new Entry[BUFFER_SIZE];
+    private static final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    // Only used by the thread draining the buffer
+    private static long head = 0;
+
+    private Category category;
+    private volatile Level level;
+
+    private static class Entry {
+        long time;
+        Level level;
+        Category category;
+        String format;
+        Object[] args;
+    }
+
+    static {
+        Level defaultLevel = parseLevel(System.getProperty("log.level"), Level.INFO);
+        for (Category category : Category.values()) {
+            Level level = parseLevel(System.getProperty("log.level." + category.name()), defaultLevel);
+            loggers[category.ordinal()] = new Log(category, level);
+        }
+
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+
+        Thread writer = new Thread(Log::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Print whatever is left when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log(Category category, Level level) {
+        this.category = category;
+        this.level = level;
+    }
+
+    /**
+     * Get the logger of a category
+     *
+     * @param category
+     * @return
+     */
+    public static Log get(Category category) {
+        return loggers[category.ordinal()];
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(Level.TRACE);
+    }
+
+    public void trace(String format, Object... args) {
+        log(Level.TRACE, format, args);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    /**
+     * Log an error, if the last argument is an exception its stack trace is
+     * printed as well
+     *
+     * @param format
+     * @param args
+     */
+    public void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /**
+     * Put a message in the ring buffer
+     *
+     * @param level
+     * @param format String.format pattern, only formatted if there are args
+     * @param args
+     */
+    private void log(Level level, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position & (BUFFER_SIZE - 1));
+            long difference = sequences.get(slot) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Entry entry = entries[slot];
+                    entry.time = System.currentTimeMillis();
+                    entry.level = level;
+                    entry.category = category;
+                    entry.format = format;
+                    entry.args = args;
+                    // Publish the entry to the writer
+                    sequences.set(slot, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer is a whole buffer behind
+                dropped.incrementAndGet();
+                return;
+            } else {
+                // Another thread took the slot first
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Print every message in the buffer. Called by the writer thread, and when
+     * the program exits.
+     */
+    public static synchronized void flush() {
+        PrintStream out = System.out;
+        boolean hasWritten = false;
+
+        while (true) {
+            int slot = (int) (head & (BUFFER_SIZE - 1));
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+
+            Entry entry = entries[slot];
+            String line = format(entry);
+            Object[] args = entry.args;
+            Level level = entry.level;
+            entry.format = null;
+            entry.args = null;
+            // Give the slot back to the writers for the next lap of the buffer
+            sequences.set(slot, head + BUFFER_SIZE);
+            head++;
+
+            PrintStream stream = level.compareTo(Level.WARN) >= 0 ? System.err : out;
+            stream.println(line);
+            if (args != null && args.length > 0 && args[args.length - 1] instanceof Throwable) {
+                ((Throwable) args[args.length - 1]).printStackTrace(stream);
+            }
+            hasWritten = true;
+        }
+
+        long droppedCount = dropped.getAndSet(0);
+        if (droppedCount > 0) {
+            System.err.println("Log buffer full, dropped " + droppedCount + " messages");
+        }
+
+        if (hasWritten) {
+            out.flush();
+        }
+    }
+
+    private static void writeEntries() {
+        while (true) {
+            flush();
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static String format(Entry entry) {
+        String message = entry.format;
+        if (entry.args != null && entry.args.length > 0) {
+            try {
+                message = String.format(entry.format, entry.args);
+            } catch (RuntimeException e) {
+                // Print the pattern rather than losing the message
+            }
+        }
+
+        LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault());
+        return String.format("%s %-5s [%s] %s", TIME_FORMAT.format(time), entry.level, entry.category, message);
+    }
+
+    private static Level parseLevel(String value, Level defaultLevel) {
+        if (value == null) {
+            return defaultLevel;
+        }
+
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultLevel;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * How much of a tile has been drawn over. The tile is split into a grid of at
+ * most 16 by 16 cells and every cell is one bit, so a whole tile fits in four
+ * longs and the covered part is counted with a few popcounts.
+ *
+ * The lines between the points drawn are marked cell by cell, the same way on
+ * the client deciding whether to capture and on the server checking the
+ * capture, so both always agree on whether a tile can be captured.
+ */
+public class TileCoverage {
+    private static final int MAX_RESOLUTION = 16;
+
+    private int tileSize;
+    // Cells per side of the tile
+    private int resolution;
+    private long[] cells;
+    // Cell of the last point, the next point is joined to it. -1 if none.
+    private int lastCellX = -1;
+    private int lastCellY = -1;
+
+    public TileCoverage(int tileSize) {
+        this.tileSize = tileSize;
+        // Cells are never smaller than a pixel
+        resolution = Math.max(1, Math.min(MAX_RESOLUTION, tileSize));
+        cells = new long[(resolution * resolution + 63) / 64];
+    }
+
+    /**
+     * Size of a tile in pixels, the stroke points are relative to it
+     *
+     * @param rows
+     * @param cols
+     * @return
+     */
+    public static int tileSize(int rows, int cols) {
+        return Math.max(Constants.minTileSize, Constants.boardPixelSize / Math.max(rows, cols));
+    }
+
+    /**
+     * Forget everything drawn, for the next tile
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = 0;
+        }
+        lastCellX = -1;
+        lastCellY = -1;
+    }
+
+    /**
+     * Mark the line from the last point to this one. Points outside the tile
+     * are skipped, the next point is joined to the last one inside.
+     *
+     * @param x Position relative to the tile in pixels
+     * @param y
+     */
+    public void addPoint(int x, int y) {
+        if (x < 0 || x >= tileSize || y < 0 || y >= tileSize) {
+            return;
+        }
+
+        int cellX = x * resolution / tileSize;
+        int cellY = y * resolution / tileSize;
+
+        if (lastCellX == -1) {
+            mark(cellX, cellY);
+        } else {
+            // Step one cell at a time along the longer side
+            int dx = cellX - lastCellX;
+            int dy = cellY - lastCellY;
+            int steps = Math.max(Math.abs(dx), Math.abs(dy));
+            for (int i = 1; i <= steps; i++) {
+                mark(lastCellX + dx * i / steps, lastCellY + dy * i / steps);
+            }
+        }
+
+        lastCellX = cellX;
+        lastCellY = cellY;
+    }
+
+    private void mark(int cellX, int cellY) {
+        int cell = cellY * resolution + cellX;
+        cells[cell >>> 6] |= 1L << cell;
+    }
+
+    /**
+     * Get the number of cells drawn over
+     *
+     * @return
+     */
+    public int getCoveredCells() {
+        int covered = 0;
+        for (long word : cells) {
+            covered += Long.bitCount(word);
+        }
+        return covered;
+    }
+
+    /**
+     * Checks if enough of the tile has been drawn over to capture it
+     *
+     * @return
+     */
+    public boolean isCaptured() {
+        return getCoveredCells() >= Math.ceil(Constants.captureCoverage * resolution * resolution);
+    }
+}